@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BitSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.incite.Lector;
+import edu.columbia.incite.corpus.DocSet;
+import edu.columbia.incite.corpus.Lexicon;
+import edu.columbia.incite.util.FileUtils;
+
+/**
+ * Postings filtering throughput.
+ *
+ * Measures a single-threaded traversal of the postings for all lexicon terms through
+ * {@link DocSet#filter(PostingsEnum, LeafReaderContext)}, against a baseline that visits every
+ * posting and tests document membership directly, for document sets of varying selectivity.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class FilterBench {
+
+    /** Number of documents in the synthetic corpus **/
+    @Param( { "10000" } )
+    public int docs;
+
+    /** Proportion of documents included in the document set **/
+    @Param( { "1.0", "0.5", "0.1", "0.01" } )
+    public double selectivity;
+
+    private Path data;
+    private Lector lector;
+    private DirectoryReader dr;
+    private Lexicon lxcn;
+    private DocSet ds;
+
+    @Setup( Level.Trial )
+    public void setup() throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus( docs );
+        this.data   = Files.createTempDirectory( "incite-bench" );
+        this.lector = new Lector( corpus.conf( data, 1 ) );
+        this.dr     = lector.directoryReader();
+        this.lxcn   = lector.lexicon();
+        this.ds     = lector.makeDocSet(
+            SyntheticCorpus.BUCKET_FIELD, SyntheticCorpus.buckets( selectivity )
+        );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException {
+        dr.close();
+        FileUtils.clearDirectory( data );
+        Files.delete( data );
+    }
+
+    @Benchmark
+    public long filtered() throws IOException {
+        long n = 0;
+        PostingsEnum pEnum = null;
+        for( LeafReaderContext ctx : dr.leaves() ) {
+            TermsEnum tEnum = terms( ctx );
+            while( tEnum != null && tEnum.next() != null ) {
+                pEnum = tEnum.postings( pEnum, PostingsEnum.FREQS );
+                PostingsEnum fEnum = ds.filter( pEnum, ctx );
+                while( fEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+                    n += fEnum.freq();
+                }
+            }
+        }
+        return n;
+    }
+
+    @Benchmark
+    public long unfiltered() throws IOException {
+        long n = 0;
+        BitSet bits = ds.bits();
+        PostingsEnum pEnum = null;
+        for( LeafReaderContext ctx : dr.leaves() ) {
+            TermsEnum tEnum = terms( ctx );
+            while( tEnum != null && tEnum.next() != null ) {
+                pEnum = tEnum.postings( pEnum, PostingsEnum.FREQS );
+                while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+                    if( bits.get( ctx.docBase + pEnum.docID() ) ) n += pEnum.freq();
+                }
+            }
+        }
+        return n;
+    }
+
+    private TermsEnum terms( LeafReaderContext ctx ) throws IOException {
+        Terms terms = ctx.reader().terms( lxcn.field() );
+        return terms == null ? null : lxcn.filter( terms );
+    }
+}
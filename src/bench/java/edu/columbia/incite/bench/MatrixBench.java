@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.columbia.incite.util.CSRMatrix;
+import edu.columbia.incite.util.SparseMatrix;
+
+/**
+ * Sparse matrix throughput.
+ *
+ * Measures updates, merges and serialization of {@link SparseMatrix} instances filled with
+ * entries whose row and column indices follow a Zipfian distribution, as in cooccurrence counts,
+ * and loading and lookups of the same data from triplet and {@link CSRMatrix} files.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class MatrixBench {
+
+    /** Number of updates per operation **/
+    @Param( { "1000000" } )
+    public int updates;
+
+    /** Matrix dimension **/
+    @Param( { "50000" } )
+    public int dim;
+
+    private int[] is;
+    private int[] js;
+    private SparseMatrix full;
+    private SparseMatrix half;
+    private Path file;
+    private Path saved;
+    private Path csr;
+
+    @Setup( Level.Trial )
+    public void setup() throws IOException {
+        Random rnd = new Random( SyntheticCorpus.DFLT_SEED );
+        this.is = new int[ updates ];
+        this.js = new int[ updates ];
+        for( int k = 0; k < updates; k++ ) {
+            is[k] = zipf( rnd );
+            js[k] = zipf( rnd );
+        }
+        this.full = fill( 0, updates );
+        this.half = fill( 0, updates / 2 );
+        this.file = Files.createTempFile( "incite-bench", ".bin" );
+        this.saved = Files.createTempFile( "incite-bench", ".bin" );
+        this.csr = Files.createTempFile( "incite-bench", ".csr" );
+        SparseMatrix.save( full, saved );
+        CSRMatrix.convert( saved, csr );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException {
+        Files.deleteIfExists( file );
+        Files.deleteIfExists( saved );
+        Files.deleteIfExists( csr );
+    }
+
+    @Benchmark
+    public SparseMatrix update() {
+        return fill( 0, updates );
+    }
+
+    @Benchmark
+    public SparseMatrix merge() {
+        SparseMatrix m = SparseMatrix.clone( half );
+        m.merge( full );
+        return m;
+    }
+
+    @Benchmark
+    public long save() throws IOException {
+        SparseMatrix.save( full, file );
+        return Files.size( file );
+    }
+
+    @Benchmark
+    public long load() throws IOException {
+        return SparseMatrix.load( saved ).size();
+    }
+
+    @Benchmark
+    public long open() throws IOException {
+        return CSRMatrix.open( csr ).size();
+    }
+
+    @Benchmark
+    public double lookup() throws IOException {
+        CSRMatrix m = CSRMatrix.open( csr );
+        double sum = 0;
+        for( int k = 0; k < updates; k++ ) {
+            sum += m.get( is[k], js[k] );
+        }
+        return sum;
+    }
+
+    private SparseMatrix fill( int from, int to ) {
+        SparseMatrix m = new SparseMatrix();
+        for( int k = from; k < to; k++ ) {
+            m.update( is[k], js[k], 1d );
+        }
+        return m;
+    }
+
+    /* inverse transform sampling from a continuous approximation of Zipf with exponent 1 */
+    private int zipf( Random rnd ) {
+        return Math.min( dim - 1, (int) Math.floor( Math.pow( dim, rnd.nextDouble() ) ) - 1 );
+    }
+}
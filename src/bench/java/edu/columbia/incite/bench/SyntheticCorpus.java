@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import edu.columbia.incite.Conf;
+
+/**
+ * Synthetic Lucene corpus for benchmarks.
+ *
+ * Builds an index with the fields expected by {@link edu.columbia.incite.Lector} under its
+ * default configuration:
+ * <ul>
+ * <li>A text field with a Zipfian term distribution, a POS tag payload at every position and,
+ * optionally, term vectors with positions.</li>
+ * <li>A split field with a uniformly distributed value, indexed and as sorted doc values.</li>
+ * <li>A bucket field with one of {@link #BUCKETS} uniformly distributed values, used to select
+ * document sets of a given selectivity. See {@link #buckets(double)}.</li>
+ * </ul>
+ *
+ * Indices are written to a temporary directory named after their parameters and reused across
+ * runs, since building them takes considerably longer than most benchmarks.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class SyntheticCorpus {
+
+    /** Field used to select document sets **/
+    public static final String BUCKET_FIELD = "bucket_field";
+    /** Number of distinct values in the bucket field **/
+    public static final int BUCKETS = 100;
+    /** Number of segments in generated indices **/
+    public static final int SEGMENTS = 8;
+
+    /** Default vocabulary size **/
+    public static final int    DFLT_VOCAB  = 50000;
+    /** Default mean document length **/
+    public static final int    DFLT_LENGTH = 300;
+    /** Default number of split values **/
+    public static final int    DFLT_SPLITS = 50;
+    /** Default Zipf exponent **/
+    public static final double DFLT_ZIPF   = 1.07;
+    /** Default random seed **/
+    public static final long   DFLT_SEED   = 42;
+
+    /* PTB tags assigned to terms by frequency rank, closed classes first */
+    private static final String[] TAGS = {
+        "DT", "IN", ",", "CC", "PRP", "TO", ".", "MD", "RB", "VBD",
+        "NN", "NNS", "JJ", "VB", "NNP", "VBN", "NN", "VBZ", "CD", "NN",
+    };
+
+    private final int docs;
+    private final int vocab;
+    private final int length;
+    private final int splits;
+    private final double zipf;
+    private final long seed;
+    private final boolean vectors;
+
+    /**
+     * Create a new synthetic corpus with the given number of documents and default parameters.
+     * @param docs Number of documents.
+     */
+    public SyntheticCorpus( int docs ) {
+        this( docs, true );
+    }
+
+    /**
+     * Create a new synthetic corpus with the given number of documents and default parameters,
+     * with or without term vectors.
+     * @param docs    Number of documents.
+     * @param vectors Store term vectors for the text field.
+     */
+    public SyntheticCorpus( int docs, boolean vectors ) {
+        this( docs, DFLT_VOCAB, DFLT_LENGTH, DFLT_SPLITS, DFLT_ZIPF, DFLT_SEED, vectors );
+    }
+
+    /**
+     * Create a new synthetic corpus with the given parameters.
+     * @param docs   Number of documents.
+     * @param vocab  Vocabulary size.
+     * @param length Mean document length, in tokens.
+     * @param splits Number of distinct values in the split field.
+     * @param zipf   Exponent for the term frequency distribution.
+     * @param seed   Random seed.
+     * @param vectors Store term vectors for the text field.
+     */
+    public SyntheticCorpus(
+        int docs, int vocab, int length, int splits, double zipf, long seed, boolean vectors
+    ) {
+        this.docs   = docs;
+        this.vocab  = vocab;
+        this.length = length;
+        this.splits = splits;
+        this.zipf   = zipf;
+        this.seed   = seed;
+        this.vectors = vectors;
+    }
+
+    /**
+     * Location of this corpus' index, building it if it does not exist yet.
+     * @return The path to a Lucene index directory.
+     * @throws IOException
+     */
+    public Path index() throws IOException {
+        Path dir = Paths.get( System.getProperty( "java.io.tmpdir" ), String.format(
+            "incite-bench-%d-%d-%d-%d-%.2f-%d%s", docs, vocab, length, splits, zipf, seed,
+            vectors ? "" : "-nv"
+        ) );
+        Path done = dir.resolve( "done" );
+        if( !Files.exists( done ) ) {
+            build( dir.resolve( "index" ) );
+            Files.createFile( done );
+        }
+        return dir.resolve( "index" );
+    }
+
+    /**
+     * Create a configuration for a {@link edu.columbia.incite.Lector} over this corpus.
+     *
+     * @param data    A directory for output data.
+     * @param threads Number of worker threads.
+     * @return A new {@link Conf} with default field names, no cache and no progress reports.
+     * @throws IOException
+     */
+    public Conf conf( Path data, int threads ) throws IOException {
+        String ns = Conf.DFLT_NS + ".";
+        Properties props = new Properties();
+        props.setProperty( ns + Conf.PARAM_HOME_DIR, data.toString() );
+        props.setProperty( ns + Conf.PARAM_DATA_DIR, data.toString() );
+        props.setProperty( ns + Conf.PARAM_INDEX_DIR, index().toString() );
+        props.setProperty( ns + Conf.PARAM_THREADS, Integer.toString( threads ) );
+        props.setProperty( ns + Conf.PARAM_QUIET, Boolean.TRUE.toString() );
+        props.setProperty( ns + Conf.PARAM_USE_CACHE, Boolean.FALSE.toString() );
+        return new Conf( props );
+    }
+
+    /**
+     * Bucket field values covering the given proportion of documents.
+     * @param selectivity A proportion between 0 and 1.
+     * @return An array of bucket field terms, to be used with
+     *         {@link edu.columbia.incite.Lector#makeDocSet(String, String[])}.
+     */
+    public static String[] buckets( double selectivity ) {
+        int n = Math.max( 1, (int) Math.round( selectivity * BUCKETS ) );
+        String[] out = new String[n];
+        for( int i = 0; i < n; i++ ) {
+            out[i] = bucket( i );
+        }
+        return out;
+    }
+
+    private static String bucket( int i ) {
+        return String.format( "b%02d", i );
+    }
+
+    private void build( Path dir ) throws IOException {
+        FieldType ft = new FieldType();
+        ft.setIndexOptions( IndexOptions.DOCS_AND_FREQS_AND_POSITIONS );
+        ft.setTokenized( true );
+        ft.setStoreTermVectors( vectors );
+        ft.setStoreTermVectorPositions( vectors );
+        ft.freeze();
+
+        double[] cdf = new double[ vocab ];
+        double sum = 0;
+        for( int r = 0; r < vocab; r++ ) {
+            sum += 1d / Math.pow( r + 1, zipf );
+            cdf[r] = sum;
+        }
+
+        Random rnd = new Random( seed );
+        IndexWriterConfig iwc = new IndexWriterConfig( null );
+        iwc.setMergePolicy( NoMergePolicy.INSTANCE );
+        iwc.setMaxBufferedDocs( Math.max( 2, docs / SEGMENTS ) );
+        iwc.setRAMBufferSizeMB( IndexWriterConfig.DISABLE_AUTO_FLUSH );
+        try( IndexWriter iw = new IndexWriter( FSDirectory.open( dir ), iwc ) ) {
+            for( int d = 0; d < docs; d++ ) {
+                int[] toks = new int[ length / 2 + rnd.nextInt( length ) ];
+                for( int i = 0; i < toks.length; i++ ) {
+                    int r = Arrays.binarySearch( cdf, rnd.nextDouble() * sum );
+                    toks[i] = Math.min( r < 0 ? -r - 1 : r, vocab - 1 );
+                }
+                String split = String.format( "s%04d", rnd.nextInt( splits ) );
+                Document doc = new Document();
+                doc.add( new Field( Conf.DFLT_TXT_FIELD, new Tokens( toks ), ft ) );
+                doc.add( new StringField( Conf.DFLT_SPLIT_FIELD, split, Field.Store.NO ) );
+                doc.add( new SortedDocValuesField( Conf.DFLT_SPLIT_FIELD, new BytesRef( split ) ) );
+                doc.add( new StringField(
+                    BUCKET_FIELD, bucket( rnd.nextInt( BUCKETS ) ), Field.Store.NO
+                ) );
+                iw.addDocument( doc );
+            }
+            iw.commit();
+        }
+    }
+
+    /* Token stream over term ranks, with a rank-dependent POS tag payload */
+    private static final class Tokens extends TokenStream {
+        private final CharTermAttribute term = addAttribute( CharTermAttribute.class );
+        private final PayloadAttribute  load = addAttribute( PayloadAttribute.class );
+        private final BytesRef[] tags = new BytesRef[ TAGS.length ];
+        private final int[] toks;
+        private int i;
+
+        private Tokens( int[] toks ) {
+            this.toks = toks;
+            for( int t = 0; t < TAGS.length; t++ ) {
+                tags[t] = new BytesRef( TAGS[t] );
+            }
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if( i >= toks.length ) return false;
+            clearAttributes();
+            int r = toks[i++];
+            term.append( 't' ).append( Integer.toString( r, Character.MAX_RADIX ) );
+            // top ranks get closed class tags, the long tail cycles over open class tags.
+            int half = TAGS.length / 2;
+            load.setPayload( tags[ r < TAGS.length ? r : half + r % half ] );
+            return true;
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            this.i = 0;
+        }
+    }
+}
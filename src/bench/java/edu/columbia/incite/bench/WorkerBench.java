@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.columbia.incite.Conf;
+import edu.columbia.incite.Lector;
+import edu.columbia.incite.corpus.DocMap;
+import edu.columbia.incite.corpus.DocSet;
+import edu.columbia.incite.corpus.work.FreqWorker;
+import edu.columbia.incite.corpus.work.POSCWorker;
+import edu.columbia.incite.util.FileUtils;
+import edu.columbia.incite.util.LongMatrix;
+import edu.columbia.incite.util.SparseMatrix;
+
+/**
+ * Corpus worker throughput.
+ *
+ * Measures full runs of each corpus worker through {@link Lector} over a {@link SyntheticCorpus},
+ * for document sets of varying selectivity and varying thread counts.
+ *
+ * Run with:
+ * {@code
+ * mvn -P bench package
+ * java -jar target/benchmarks.jar WorkerBench -p docs=20000 -p threads=1,4
+ * }
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MINUTES )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+@State( Scope.Benchmark )
+public class WorkerBench {
+
+    /** Number of documents in the synthetic corpus **/
+    @Param( { "10000" } )
+    public int docs;
+
+    /** Number of worker threads **/
+    @Param( { "1", "2", "4", "8" } )
+    public int threads;
+
+    /** Proportion of documents included in the document set **/
+    @Param( { "1.0", "0.1", "0.01" } )
+    public double selectivity;
+
+    /** Store term vectors, otherwise cooccurrences are counted from postings **/
+    @Param( { "true", "false" } )
+    public boolean vectors;
+
+    private Path data;
+    private Lector lector;
+    private DocSet ds;
+    private DocMap<String> splits;
+
+    @Setup( Level.Trial )
+    public void setup() throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus( docs, vectors );
+        this.data   = Files.createTempDirectory( "incite-bench" );
+        this.lector = new Lector( corpus.conf( data, threads ) );
+        this.ds     = lector.makeDocSet(
+            SyntheticCorpus.BUCKET_FIELD, SyntheticCorpus.buckets( selectivity )
+        );
+        this.splits = lector.mapField( Conf.DFLT_SPLIT_FIELD );
+        lector.lexicon();
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException {
+        lector.directoryReader().close();
+        FileUtils.clearDirectory( data );
+        Files.delete( data );
+    }
+
+    @Benchmark
+    public LongMatrix frequencies() throws IOException {
+        return lector.countFrequencyMatrix( ds, splits, null );
+    }
+
+    @Benchmark
+    public long[][] posCounts() throws IOException {
+        return lector.countPOSTags( ds );
+    }
+
+    @Benchmark
+    public void sharedScan( Blackhole bh ) throws IOException {
+        FreqWorker freq = new FreqWorker( lector.lexicon(), splits );
+        POSCWorker posc = new POSCWorker( lector.lexicon() );
+        lector.scanPostings( ds, null, freq, posc );
+        bh.consume( freq.data() );
+        bh.consume( posc.data() );
+    }
+
+    @Benchmark
+    public SparseMatrix cooccurrences() {
+        return lector.countCooccurrences( ds );
+    }
+
+    @Benchmark
+    public DocMap<String> docMap() {
+        return Lector.buildDocMap( lector.directoryReader(), Conf.DFLT_SPLIT_FIELD, threads );
+    }
+}
@@ -34,7 +34,9 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import edu.columbia.incite.corpus.Lexicon;
+import edu.columbia.incite.corpus.work.Weighting;
 import edu.columbia.incite.run.ConfBase;
+import edu.columbia.incite.run.Jobs;
 import edu.columbia.incite.uima.index.CorpusIndexer;
 import edu.columbia.incite.uima.index.Tokenizer;
 import edu.columbia.incite.uima.io.BinaryReader;
@@ -58,11 +60,17 @@ public class Conf extends ConfBase {
     public static final String PARAM_INPUT_DIR    = "uima_indir";
     public static final String PARAM_OUTPUT_DIR   = "uima_outdir";
     public static final String PARAM_TABLES_DIR   = "tables_dir";
+    public static final String PARAM_CACHE_DIR    = "cache_dir";
+    public static final String PARAM_SPILL_DIR    = "spill_dir";
+    public static final String PARAM_SPLIT_DIR    = "cooc_split_dir";
+    public static final String PARAM_CKPT_DIR     = "cooc_checkpoint_dir";
 
     public static final String PARAM_COOC_FILE    = "cooc_file";
+    public static final String PARAM_CSR_FILE     = "csr_file";
     public static final String PARAM_POSC_FILE    = "posc_file";
     public static final String PARAM_FREQ_FILE    = "freq_file";
     public static final String PARAM_LXCN_FILE    = "lxcn_file";
+    public static final String PARAM_SEGS_FILE    = "segs_file";
     public static final String PARAM_TERM_ID      = "term_id";
 
     public static final String PARAM_UIMA_READER  = "uima_reader";
@@ -79,10 +87,24 @@ public class Conf extends ConfBase {
     
     public static final String PARAM_COOCUR_W_PRE = "cooc_w_pre";
     public static final String PARAM_COOCUR_W_POS = "cooc_w_pos";
+    public static final String PARAM_COOCUR_SHARE = "cooc_shared";
+    public static final String PARAM_COOCUR_MEM   = "cooc_mem_mb";
+    public static final String PARAM_COOCUR_CSR   = "cooc_csr";
+    public static final String PARAM_COOCUR_SYMM  = "cooc_symmetric";
+    public static final String PARAM_COOCUR_WGHT  = "cooc_weights";
+    public static final String PARAM_COOCUR_IDF   = "cooc_idf";
+    public static final String PARAM_COOCUR_TOPK  = "cooc_top_k";
+    public static final String PARAM_COOCUR_SPLIT = "cooc_split";
+    public static final String PARAM_COOCUR_ROWS  = "cooc_row_block";
+    public static final String PARAM_COOCUR_CKPT  = "cooc_checkpoint_docs";
+    public static final String PARAM_COOCUR_RESUM = "cooc_resume";
     public static final String PARAM_MIN_TERM_FRQ = "min_term_freq";
     
+    public static final String PARAM_SCAN_CHUNK   = "scan_chunk";
     public static final String PARAM_THREADS      = "threads";
     public static final String PARAM_QUIET        = "quiet";
+    public static final String PARAM_REPORT_MS    = "report_ms";
+    public static final String PARAM_USE_CACHE    = "use_cache";
     public static final String PARAM_DUMP_CONF    = "dump_conf";
 
     // Parameter documentation
@@ -96,11 +118,17 @@ public class Conf extends ConfBase {
     public static final String DESC_INPUT_DIR    = "UIMA input directory";
     public static final String DESC_OUTPUT_DIR   = "UIMA output directory";
     public static final String DESC_TABLES_DIR   = "Corpus metadata tables directory";
+    public static final String DESC_CACHE_DIR    = "Derived corpus structures cache directory";
+    public static final String DESC_SPILL_DIR    = "Temporary directory for spilled cooc runs";
+    public static final String DESC_SPLIT_DIR    = "Directory for per-split cooc files";
+    public static final String DESC_CKPT_DIR     = "Directory for cooc checkpoints";
 
     public static final String DESC_COOC_FILE    = "Cooccurrence file name";
+    public static final String DESC_CSR_FILE     = "Cooccurrence file name in CSR format";
     public static final String DESC_POSC_FILE    = "POS counts file name";
     public static final String DESC_FREQ_FILE    = "Frequencies file name";
     public static final String DESC_LXCN_FILE    = "Lexicon file name";
+    public static final String DESC_SEGS_FILE    = "Covered index segments file name";
     public static final String DESC_TERM_ID      = "Term id column header";
     
     public static final String DESC_UIMA_READER  = "UIMA collection reader";
@@ -117,10 +145,24 @@ public class Conf extends ConfBase {
     
     public static final String DESC_COOCUR_W_PRE = "Cooccurrence window trailing width";
     public static final String DESC_COOCUR_W_POS = "Cooccurrence window leading width";
+    public static final String DESC_COOCUR_SHARE = "Share one cooc matrix across threads";
+    public static final String DESC_COOCUR_MEM   = "Cooc matrix memory budget in MB, 0 for none";
+    public static final String DESC_COOCUR_CSR   = "Also dump cooc counts in CSR format";
+    public static final String DESC_COOCUR_SYMM  = "Store cooc counts once if widths are equal";
+    public static final String DESC_COOCUR_WGHT  = "Cooc distance weights (UNIFORM|HARMONIC|LINEAR)";
+    public static final String DESC_COOCUR_IDF   = "Weight cooc counts by both terms' IDF";
+    public static final String DESC_COOCUR_TOPK  = "Keep only the top k cooc counts per term";
+    public static final String DESC_COOCUR_SPLIT = "Dump one cooc matrix per split value";
+    public static final String DESC_COOCUR_ROWS  = "Count cooc rows in passes over blocks of terms";
+    public static final String DESC_COOCUR_CKPT  = "Checkpoint cooc counts every n documents";
+    public static final String DESC_COOCUR_RESUM = "Resume cooc counts from the last checkpoint";
     public static final String DESC_MIN_TERM_FRQ = "Minimum lexicon term frequency";
     
+    public static final String DESC_SCAN_CHUNK   = "Lexicon terms per scan task, at least 1";
     public static final String DESC_THREADS      = "Number of threads to run workers on";
     public static final String DESC_QUIET        = "Silence worker progress reports";
+    public static final String DESC_REPORT_MS    = "Worker progress report interval in millis";
+    public static final String DESC_USE_CACHE    = "Cache derived corpus structures on disk";
     public static final String DESC_DUMP_CONF    = "Dump effective configuration to disk";
 
     // Default parameter values
@@ -134,11 +176,17 @@ public class Conf extends ConfBase {
     public static final String DFLT_INPUT_DIR     = "input";
     public static final String DFLT_OUTPUT_DIR    = "output";
     public static final String DFLT_TABLES_DIR    = "tables";
+    public static final String DFLT_CACHE_DIR     = "cache";
+    public static final String DFLT_SPILL_DIR     = "spill";
+    public static final String DFLT_SPLIT_DIR     = "cooc";
+    public static final String DFLT_CKPT_DIR      = "checkpoint";
 
     public static final String DFLT_COOC_FILE     = "cooc.bin";
+    public static final String DFLT_CSR_FILE      = "cooc.csr";
     public static final String DFLT_POSC_FILE     = "posc.dsv";
     public static final String DFLT_FREQ_FILE     = "freq.dsv";
     public static final String DFLT_LXCN_FILE     = "lxcn.dsv";
+    public static final String DFLT_SEGS_FILE     = "segs.dsv";
     public static final String DFLT_TERM_ID       = Lexicon.TERM_ID;
     
     public static final Class  DFLT_UIMA_READER   = BinaryReader.class;
@@ -155,10 +203,24 @@ public class Conf extends ConfBase {
 
     public static final int    DFLT_COOCUR_W_PRE  = 10;
     public static final int    DFLT_COOCUR_W_POS  = 10;
+    public static final boolean DFLT_COOCUR_SHARE = true;
+    public static final long   DFLT_COOCUR_MEM    = 0;
+    public static final boolean DFLT_COOCUR_CSR   = false;
+    public static final boolean DFLT_COOCUR_SYMM  = true;
+    public static final Weighting.Scheme DFLT_COOCUR_WGHT = Weighting.Scheme.HARMONIC;
+    public static final boolean DFLT_COOCUR_IDF   = false;
+    public static final int    DFLT_COOCUR_TOPK   = 0;
+    public static final boolean DFLT_COOCUR_SPLIT = false;
+    public static final int    DFLT_COOCUR_ROWS   = 0;
+    public static final int    DFLT_COOCUR_CKPT   = 0;
+    public static final boolean DFLT_COOCUR_RESUM = false;
     public static final int    DFLT_MIN_TERM_FRQ  = 5;
     
+    public static final int    DFLT_SCAN_CHUNK    = 1024;
     public static final int    DFLT_THREADS       = Runtime.getRuntime().availableProcessors();
     public static final boolean DFLT_QUIET        = false;
+    public static final long   DFLT_REPORT_MS     = Jobs.DEFAULT_INTERVAL;
+    public static final boolean DFLT_USE_CACHE    = true;
     public static final boolean DFLT_DUMP_CONF    = false;
     
 //    public static final String DFLT_DOCID_FIELD   = POBDocFields.OBO_SECTION_FIELD;
@@ -223,11 +285,17 @@ public class Conf extends ConfBase {
         System.out.printf( format, PARAM_INPUT_DIR   , DESC_INPUT_DIR    );
         System.out.printf( format, PARAM_OUTPUT_DIR  , DESC_OUTPUT_DIR   );
         System.out.printf( format, PARAM_TABLES_DIR  , DESC_TABLES_DIR   );
+        System.out.printf( format, PARAM_CACHE_DIR   , DESC_CACHE_DIR    );
+        System.out.printf( format, PARAM_SPILL_DIR   , DESC_SPILL_DIR    );
+        System.out.printf( format, PARAM_SPLIT_DIR   , DESC_SPLIT_DIR    );
+        System.out.printf( format, PARAM_CKPT_DIR    , DESC_CKPT_DIR     );
 
         System.out.printf( format, PARAM_COOC_FILE   , DESC_COOC_FILE    );
+        System.out.printf( format, PARAM_CSR_FILE    , DESC_CSR_FILE     );
         System.out.printf( format, PARAM_POSC_FILE   , DESC_POSC_FILE    );
         System.out.printf( format, PARAM_FREQ_FILE   , DESC_FREQ_FILE    );
         System.out.printf( format, PARAM_LXCN_FILE   , DESC_LXCN_FILE    );
+        System.out.printf( format, PARAM_SEGS_FILE   , DESC_SEGS_FILE    );
         System.out.printf( format, PARAM_TERM_ID     , DESC_TERM_ID      );
 
         System.out.printf( format, PARAM_UIMA_READER , DESC_UIMA_READER  );
@@ -244,9 +312,23 @@ public class Conf extends ConfBase {
 
         System.out.printf( format, PARAM_COOCUR_W_PRE, DESC_COOCUR_W_PRE );
         System.out.printf( format, PARAM_COOCUR_W_POS, DESC_COOCUR_W_POS );
+        System.out.printf( format, PARAM_COOCUR_SHARE, DESC_COOCUR_SHARE );
+        System.out.printf( format, PARAM_COOCUR_MEM  , DESC_COOCUR_MEM   );
+        System.out.printf( format, PARAM_COOCUR_CSR  , DESC_COOCUR_CSR   );
+        System.out.printf( format, PARAM_COOCUR_SYMM , DESC_COOCUR_SYMM  );
+        System.out.printf( format, PARAM_COOCUR_WGHT , DESC_COOCUR_WGHT  );
+        System.out.printf( format, PARAM_COOCUR_IDF  , DESC_COOCUR_IDF   );
+        System.out.printf( format, PARAM_COOCUR_TOPK , DESC_COOCUR_TOPK  );
+        System.out.printf( format, PARAM_COOCUR_SPLIT, DESC_COOCUR_SPLIT );
+        System.out.printf( format, PARAM_COOCUR_ROWS , DESC_COOCUR_ROWS  );
+        System.out.printf( format, PARAM_COOCUR_CKPT , DESC_COOCUR_CKPT  );
+        System.out.printf( format, PARAM_COOCUR_RESUM, DESC_COOCUR_RESUM );
         System.out.printf( format, PARAM_MIN_TERM_FRQ, DESC_MIN_TERM_FRQ );
+        System.out.printf( format, PARAM_SCAN_CHUNK  , DESC_SCAN_CHUNK   );
         System.out.printf( format, PARAM_THREADS     , DESC_THREADS      );
         System.out.printf( format, PARAM_QUIET       , DESC_QUIET        );
+        System.out.printf( format, PARAM_REPORT_MS   , DESC_REPORT_MS    );
+        System.out.printf( format, PARAM_USE_CACHE   , DESC_USE_CACHE    );
         System.out.printf( format, PARAM_DUMP_CONF   , DESC_DUMP_CONF    );
     }
 
@@ -262,11 +344,17 @@ public class Conf extends ConfBase {
         System.out.printf( format, PARAM_INPUT_DIR   , this.inputDir().toString()    );
         System.out.printf( format, PARAM_OUTPUT_DIR  , this.outputDir().toString()   );
         System.out.printf( format, PARAM_TABLES_DIR  , this.tablesDir().toString()   );
+        System.out.printf( format, PARAM_CACHE_DIR   , this.cacheDir().toString()    );
+        System.out.printf( format, PARAM_SPILL_DIR   , this.spillDir().toString()    );
+        System.out.printf( format, PARAM_SPLIT_DIR   , this.coocSplitDir().toString() );
+        System.out.printf( format, PARAM_CKPT_DIR    , this.coocCkptDir().toString()  );
   
         System.out.printf( format, PARAM_COOC_FILE   , this.coocFile().toString()    );
+        System.out.printf( format, PARAM_CSR_FILE    , this.csrFile().toString()     );
         System.out.printf( format, PARAM_POSC_FILE   , this.poscFile().toString()    );
         System.out.printf( format, PARAM_FREQ_FILE   , this.freqFile().toString()    );
         System.out.printf( format, PARAM_LXCN_FILE   , this.lxcnFile().toString()    );
+        System.out.printf( format, PARAM_SEGS_FILE   , this.segsFile().toString()    );
         System.out.printf( format, PARAM_TERM_ID     , this.termId()                 );
   
         System.out.printf( format, PARAM_UIMA_READER , this.uimaReader().getName()   );
@@ -283,10 +371,24 @@ public class Conf extends ConfBase {
   
         System.out.printf( format, PARAM_COOCUR_W_PRE, this.wPre()                   );
         System.out.printf( format, PARAM_COOCUR_W_POS, this.wPos()                   );
+        System.out.printf( format, PARAM_COOCUR_SHARE, this.coocShared()             );
+        System.out.printf( format, PARAM_COOCUR_MEM  , this.coocMemMB()              );
+        System.out.printf( format, PARAM_COOCUR_CSR  , this.coocCSR()                );
+        System.out.printf( format, PARAM_COOCUR_SYMM , this.coocSymmetric()          );
+        System.out.printf( format, PARAM_COOCUR_WGHT , this.coocWeights()            );
+        System.out.printf( format, PARAM_COOCUR_IDF  , this.coocIDF()                );
+        System.out.printf( format, PARAM_COOCUR_TOPK , this.coocTopK()               );
+        System.out.printf( format, PARAM_COOCUR_SPLIT, this.coocSplit()              );
+        System.out.printf( format, PARAM_COOCUR_ROWS , this.coocRowBlock()           );
+        System.out.printf( format, PARAM_COOCUR_CKPT , this.coocCkptDocs()           );
+        System.out.printf( format, PARAM_COOCUR_RESUM, this.coocResume()             );
         System.out.printf( format, PARAM_MIN_TERM_FRQ, this.minTermFreq()            );
   
+        System.out.printf( format, PARAM_SCAN_CHUNK  , this.scanChunk()              );
         System.out.printf( format, PARAM_THREADS     , this.threads()                );
         System.out.printf( format, PARAM_QUIET       , this.quiet()                  );
+        System.out.printf( format, PARAM_REPORT_MS   , this.reportInterval()         );
+        System.out.printf( format, PARAM_USE_CACHE   , this.useCache()               );
         System.out.printf( format, PARAM_DUMP_CONF   , this.dumpConf()               );
     }
 
@@ -354,12 +456,42 @@ public class Conf extends ConfBase {
         );
     }
 
+    public Path cacheDir() {
+        return getPath(
+            PARAM_CACHE_DIR, dataDir(), dataDir().resolve( Paths.get( DFLT_CACHE_DIR ) )
+        );
+    }
+
+    public Path spillDir() {
+        return getPath(
+            PARAM_SPILL_DIR, dataDir(), dataDir().resolve( Paths.get( DFLT_SPILL_DIR ) )
+        );
+    }
+
+    public Path coocSplitDir() {
+        return getPath(
+            PARAM_SPLIT_DIR, dataDir(), dataDir().resolve( Paths.get( DFLT_SPLIT_DIR ) )
+        );
+    }
+
+    public Path coocCkptDir() {
+        return getPath(
+            PARAM_CKPT_DIR, dataDir(), dataDir().resolve( Paths.get( DFLT_CKPT_DIR ) )
+        );
+    }
+
     public Path coocFile() {
         return getPath( PARAM_COOC_FILE,
             dataDir(), Paths.get( DFLT_COOC_FILE )
         );
     }
 
+    public Path csrFile() {
+        return getPath( PARAM_CSR_FILE,
+            dataDir(), Paths.get( DFLT_CSR_FILE )
+        );
+    }
+
     public Path poscFile() {
         return getPath( PARAM_POSC_FILE,
             dataDir(), Paths.get( DFLT_POSC_FILE )
@@ -378,6 +510,12 @@ public class Conf extends ConfBase {
         );
     }
 
+    public Path segsFile() {
+        return getPath( PARAM_SEGS_FILE,
+            dataDir(), Paths.get( DFLT_SEGS_FILE )
+        );
+    }
+
     public String termId() {
         return getString( PARAM_TERM_ID, DFLT_TERM_ID );
     }
@@ -439,10 +577,60 @@ public class Conf extends ConfBase {
         return getInteger( PARAM_COOCUR_W_POS, DFLT_COOCUR_W_POS );
     }
 
+    public boolean coocShared() {
+        return getBoolean( PARAM_COOCUR_SHARE, DFLT_COOCUR_SHARE );
+    }
+
+    public long coocMemMB() {
+        return getLong( PARAM_COOCUR_MEM, DFLT_COOCUR_MEM );
+    }
+
+    public boolean coocCSR() {
+        return getBoolean( PARAM_COOCUR_CSR, DFLT_COOCUR_CSR );
+    }
+
+    public boolean coocSymmetric() {
+        return getBoolean( PARAM_COOCUR_SYMM, DFLT_COOCUR_SYMM ) && wPre() == wPos() 
+            && coocTopK() <= 0 && coocRowBlock() <= 0;
+    }
+
+    public Weighting.Scheme coocWeights() {
+        return getEnum( PARAM_COOCUR_WGHT, Weighting.Scheme.class, DFLT_COOCUR_WGHT );
+    }
+
+    public boolean coocIDF() {
+        return getBoolean( PARAM_COOCUR_IDF, DFLT_COOCUR_IDF );
+    }
+
+    public int coocTopK() {
+        return getInteger( PARAM_COOCUR_TOPK, DFLT_COOCUR_TOPK );
+    }
+
+    public boolean coocSplit() {
+        return getBoolean( PARAM_COOCUR_SPLIT, DFLT_COOCUR_SPLIT );
+    }
+
+    public int coocRowBlock() {
+        return getInteger( PARAM_COOCUR_ROWS, DFLT_COOCUR_ROWS );
+    }
+
+    public int coocCkptDocs() {
+        return getInteger( PARAM_COOCUR_CKPT, DFLT_COOCUR_CKPT );
+    }
+
+    public boolean coocResume() {
+        return getBoolean( PARAM_COOCUR_RESUM, DFLT_COOCUR_RESUM );
+    }
+
     public int minTermFreq() {
         return getInteger( PARAM_MIN_TERM_FRQ, DFLT_MIN_TERM_FRQ );
     }
 
+    public int scanChunk() {
+        // non-positive chunks would never advance through the lexicon.
+        return Math.max( 1, getInteger( PARAM_SCAN_CHUNK, DFLT_SCAN_CHUNK ) );
+    }
+
     public int threads() {
         return getInteger( PARAM_THREADS, DFLT_THREADS );
     }
@@ -451,6 +639,14 @@ public class Conf extends ConfBase {
         return getBoolean( PARAM_QUIET, DFLT_QUIET );
     }
     
+    public long reportInterval() {
+        return getLong( PARAM_REPORT_MS, DFLT_REPORT_MS );
+    }
+
+    public boolean useCache() {
+        return getBoolean( PARAM_USE_CACHE, DFLT_USE_CACHE );
+    }
+
     public boolean dumpConf() {
         return getBoolean( PARAM_DUMP_CONF, DFLT_DUMP_CONF );
     }
@@ -18,29 +18,34 @@ package edu.columbia.incite;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.BiMap;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.SlowCompositeReaderWrapper;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -58,14 +63,26 @@ import org.apache.uima.resource.ResourceInitializationException;
 import org.apache.uima.util.InvalidXMLException;
 import org.xml.sax.SAXException;
 
+import edu.columbia.incite.corpus.work.Checkpoint;
 import edu.columbia.incite.corpus.work.CoocWorker;
 import edu.columbia.incite.corpus.work.FreqWorker;
+import edu.columbia.incite.corpus.work.MapWorker;
 import edu.columbia.incite.corpus.work.POSCWorker;
+import edu.columbia.incite.corpus.work.PostingsCollector;
+import edu.columbia.incite.corpus.work.ScanWorker;
+import edu.columbia.incite.corpus.work.Weighting;
+import edu.columbia.incite.corpus.CorpusCache;
 import edu.columbia.incite.corpus.DocMap;
 import edu.columbia.incite.corpus.DocSet;
 import edu.columbia.incite.corpus.Lexicon;
+import edu.columbia.incite.corpus.Segments;
+import edu.columbia.incite.util.CSRMatrix;
+import edu.columbia.incite.util.FileUtils;
+import edu.columbia.incite.util.LongMatrix;
 import edu.columbia.incite.util.SparseMatrix;
+import edu.columbia.incite.util.Triplets;
 import edu.columbia.incite.run.CallbackListener;
+import edu.columbia.incite.run.Jobs;
 import edu.columbia.incite.run.Progress;
 import edu.columbia.incite.uima.util.ComponentFactory;
 
@@ -80,9 +97,11 @@ public final class Lector {
     private final Map<String,DocMap<String>> mapCache = new HashMap<>();
         
     private Conf       conf;
+    private DirectoryReader dr;
     private LeafReader ir;
     private Lexicon    lxcn;
     private DocSet     sample;
+    private CorpusCache cache;
 
     public Lector() throws IOException {
         this( new Conf() );
@@ -97,69 +116,182 @@ public final class Lector {
     public void dumpCorpusData() {
         try {
             this.dumpLexicon( this.lexicon() );
-            long[][] freq = this.countFrequencies( docSample() );
-            this.dumpFrequencies( freq );
-            long[][] posc = this.countPOSTags( docSample() );
-            this.dumpPOSCounts( posc );
-            SparseMatrix cooc = this.countCooccurrences( docSample() );
-            this.dumpCooccurrences( cooc );
+            FreqWorker freq = new FreqWorker( lexicon(), mapField( this.conf.fieldSplit() ) );
+            POSCWorker posc = new POSCWorker( lexicon() );
+            this.scanPostings( docSample(), null, freq, posc );
+            this.dumpFrequencies( freq.data() );
+            this.dumpPOSCounts( posc.data() );
+            this.dumpCooccurrences( docSample(), directoryReader().leaves() );
+            this.dumpSegments( Segments.of( directoryReader() ) );
         } catch( IOException ex ) {
             Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
         }
     }
     
+    /**
+     * Update previously dumped corpus data with counts from index segments that have been added 
+     * since the data was produced.
+     * 
+     * The segments covered by dumped data are recorded in {@link Conf#segsFile()}. Only segments 
+     * not recorded there are counted, and their counts are added to the existing frequency, POS 
+     * and cooccurrence data. The lexicon is pinned to the dumped one so that term indices remain 
+     * valid; terms that have crossed the frequency threshold since will not be included until 
+     * data is dumped from scratch.
+     * 
+     * If there is no record of covered segments, or if any covered segment is no longer present 
+     * in the index (e.g. because it was merged) or has had documents deleted since it was counted, 
+     * all corpus data is dumped from scratch with {@link #dumpCorpusData()}. Counts for deleted 
+     * documents can't be subtracted, and documents updated in place are deleted from their 
+     * covered segment and added to a new one, so they would otherwise be counted twice. See 
+     * {@link Segments}.
+     */
+    public void updateCorpusData() {
+        try {
+            Path file = this.conf.segsFile();
+            if( !Files.exists( file ) ) {
+                infof( "No covered segments found in %s. Counting all segments", file );
+                dumpCorpusData();
+                return;
+            }
+            Segments done = Segments.read( file );
+            DirectoryReader dr = directoryReader();
+            if( !done.present( dr ) ) {
+                warnf( "Segments covered in %s have been merged or had documents deleted. "
+                    + "Counting all segments", file
+                );
+                dumpCorpusData();
+                return;
+            }
+            List<LeafReaderContext> delta = done.delta( dr );
+            if( delta.isEmpty() ) {
+                infof( "Corpus data is up to date with %d segments", done.size() );
+                return;
+            }
+            int docs = delta.stream().mapToInt( ( ctx ) -> ctx.reader().maxDoc() ).sum();
+            infof( "Updating corpus data with %d new segments containing %d documents", 
+                delta.size(), docs
+            );
+            
+            this.lxcn = Lexicon.read( 
+                dr, this.conf.fieldTxt(), this.conf.minTermFreq(), this.conf.lxcnFile() 
+            );
+            int unlisted = this.lxcn.unlisted();
+            if( unlisted > 0 ) {
+                warnf( "%d terms above minimum frequency are not in the lexicon", unlisted );
+            }
+            this.dumpLexicon( this.lxcn );
+            
+            DocMap<String> splits = mapField( this.conf.fieldSplit() );
+            FreqWorker freq = new FreqWorker( lexicon(), splits );
+            POSCWorker posc = new POSCWorker( lexicon() );
+            this.scan( docSample(), new ScanWorker( lexicon(), freq, posc ), delta );
+            LongMatrix freqs = FreqWorker.read( lexicon(), splits, this.conf.freqFile() );
+            this.dumpFrequencies( freqs.add( freq.data() ) );
+            long[][] poscs = POSCWorker.read( lexicon(), this.conf.poscFile() );
+            this.dumpPOSCounts( add( poscs, posc.data() ) );
+            
+            int topk = this.conf.coocTopK();
+            if( ( this.conf.coocMemMB() > 0 && topk <= 0 ) || this.conf.coocSplit() 
+                || this.conf.coocRowBlock() > 0 ) {
+                this.dumpCooccurrences( docSample(), delta, this.conf.coocFile() );
+            } else {
+                SparseMatrix add = this.countCooccurrences( docSample(), null, delta );
+                if( add == null ) {
+                    throw new IOException( "Failed to count cooccurrences for new segments" );
+                }
+                SparseMatrix cooc = SparseMatrix.merge( Arrays.asList( 
+                    add, SparseMatrix.load( this.conf.coocFile(), this.conf.coocSymmetric() )
+                ), this.conf.threads() );
+                if( topk > 0 ) cooc.top( topk );
+                this.dumpCooccurrences( cooc );
+            }
+            this.dumpSegments( Segments.of( dr ) );
+        } catch( IOException ex ) {
+            Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
+        }
+    }
+    
+    private static long[][] add( long[][] tgt, long[][] src ) {
+        for( int i = 0; i < tgt.length; i++ ) {
+            for( int j = 0; j < tgt[i].length; j++ ) {
+                tgt[i][j] += src[i][j];
+            }
+        }
+        return tgt;
+    }
+    
+    public void dumpSegments( Segments segs ) throws IOException {
+        Path file = this.conf.segsFile();
+        infof( "Dumping %d covered segments to %s", segs.size(), file );
+        Segments.write( segs, file );
+    }
+    
+    /**
+     * Term frequencies by split value as a dense array, as returned by previous versions.
+     * 
+     * This is a bridge for callers of the array-based API, e.g. over JNI; it copies the result of 
+     * {@link #countFrequencyMatrix(DocSet)} into a full {@code long[][]}, so it needs memory for 
+     * every cell even if counts are sparse.
+     * 
+     * @param ds A DocSet.
+     * @return A {@code long[][]} array with one row per lexicon term and one column per split 
+     *         value.
+     * @throws IOException 
+     */
     public long[][] countFrequencies( DocSet ds ) throws IOException {
-        return countFrequencies( ds, null );
+        return countFrequencyMatrix( ds ).toArray();
     }
     
     public long[][] countFrequencies( DocSet ds, Progress prog ) throws IOException {
+        return countFrequencyMatrix( ds, prog ).toArray();
+    }
+    
+    public long[][] countFrequencies( DocSet ds, DocMap splits, Progress prog ) 
+    throws IOException {
+        return countFrequencyMatrix( ds, splits, prog ).toArray();
+    }
+    
+    /**
+     * Term frequencies by split value, in a dense or sparse {@link LongMatrix} depending on their 
+     * density. See {@link FreqWorker}.
+     * 
+     * @param ds A DocSet.
+     * @return A {@link LongMatrix} with one row per lexicon term and one column per split value.
+     * @throws IOException 
+     */
+    public LongMatrix countFrequencyMatrix( DocSet ds ) throws IOException {
+        return countFrequencyMatrix( ds, null );
+    }
+    
+    public LongMatrix countFrequencyMatrix( DocSet ds, Progress prog ) throws IOException {
         DocMap<String> splits = mapField( this.conf.fieldSplit() );
-        return countFrequencies( ds, splits, prog );
+        return countFrequencyMatrix( ds, splits, prog );
     }
     
-    public long[][] countFrequencies( DocSet ds, DocMap splits, Progress prog ) throws IOException {
+    public LongMatrix countFrequencyMatrix( DocSet ds, DocMap splits, Progress prog ) 
+    throws IOException {
         FreqWorker wrkr = new FreqWorker( lexicon(), splits, prog );
-        LeafReader lr = indexReader();
-        TermsEnum tEnum = lexicon().filter( lr.terms( lexicon().field() ) );
-        ExecutorService exec = Executors.newFixedThreadPool( this.conf.threads() );
-        while( tEnum.next() != null ) {
-            PostingsEnum pEnum = ds != null ?
-                ds.filter( tEnum.postings( null, wrkr.flags() ) ) :
-                tEnum.postings( null, wrkr.flags() );
-            exec.submit( wrkr.work( BytesRef.deepCopyOf( tEnum.term() ), pEnum ) );
-        }
-        exec.shutdown();
-        boolean quiet = conf.quiet();
-        while( !exec.isTerminated() ) {
-            if( !quiet ) wrkr.report();
-        }
-        if( !quiet ) wrkr.report();
+        scan( ds, new ScanWorker( lexicon(), FreqWorker.NAME, prog, wrkr ) );
         return wrkr.data();
     }
 
     public void dumpFrequencies( long[][] data ) throws IOException {
+        dumpFrequencies( LongMatrix.wrap( data ) );
+    }
+
+    public void dumpFrequencies( LongMatrix data ) throws IOException {
         Path file = this.conf.freqFile();
         infof( "Dumping frequencies to %s", file );
         FreqWorker.write( lexicon(), data, mapField( this.conf.fieldSplit() ), file );
     }
     
     public long[][] countPOSTags( DocSet ds ) throws IOException {
-        ExecutorService exec = Executors.newFixedThreadPool( this.conf.threads() );
-        POSCWorker wrkr = new POSCWorker( lexicon() );
-        LeafReader lr = indexReader();
-        TermsEnum tEnum = lexicon().filter( lr.terms( lexicon().field() ) );
-        while( tEnum.next() != null ) {
-            PostingsEnum pEnum = ds != null ?
-                ds.filter( tEnum.postings( null, wrkr.flags() ) ) :
-                tEnum.postings( null, wrkr.flags() );
-            exec.submit( wrkr.work( BytesRef.deepCopyOf( tEnum.term() ), pEnum ) );
-        }
-        exec.shutdown();
-        boolean quiet = conf.quiet();
-        while( !exec.isTerminated() ) {
-            if( !quiet ) wrkr.report();
-        }
-        if( !quiet ) wrkr.report();
+        return countPOSTags( ds, null );
+    }
+    
+    public long[][] countPOSTags( DocSet ds, Progress prog ) throws IOException {
+        POSCWorker wrkr = new POSCWorker( lexicon(), prog );
+        scan( ds, new ScanWorker( lexicon(), POSCWorker.NAME, prog, wrkr ) );
         return wrkr.data();
     }
 
@@ -169,36 +301,408 @@ public final class Lector {
         POSCWorker.write( lexicon(), data, file );
     }
     
+    /**
+     * Feed all postings for the terms in this Lector's lexicon to the given collectors in a 
+     * single pass over the index.
+     * 
+     * @param ds   A DocSet to restrict the scan to. May be {@code null} to scan all documents.
+     * @param prog A {@link Progress} output. May be {@code null}.
+     * @param cols Any number of {@link PostingsCollector}s, e.g. {@link FreqWorker} and 
+     *             {@link POSCWorker} instances.
+     * @throws IOException 
+     */
+    public void scanPostings( DocSet ds, Progress prog, PostingsCollector... cols ) 
+    throws IOException {
+        scan( ds, new ScanWorker( lexicon(), ScanWorker.NAME, prog, cols ) );
+    }
+    
+    private void scan( DocSet ds, ScanWorker wrkr ) throws IOException {
+        scan( ds, wrkr, directoryReader().leaves() );
+    }
+    
+    private void scan( DocSet ds, ScanWorker wrkr, List<LeafReaderContext> leaves ) 
+    throws IOException {
+        int size  = lexicon().size();
+        int chunk = this.conf.scanChunk();
+        try( Jobs jobs = jobs() ) {
+            for( int from = 0; from < size; from += chunk ) {
+                jobs.submit( wrkr.work( leaves, ds, from, Math.min( from + chunk, size ) ) );
+            }
+            jobs.await( conf.quiet() ? null : wrkr::report );
+        }
+    }
+    
     public SparseMatrix countCooccurrences( DocSet ds ) {
         return countCooccurrences( ds, null );
     }
     
     public SparseMatrix countCooccurrences( DocSet ds, Progress out ) {
+        return countCooccurrences( ds, out, directoryReader().leaves() );
+    }
+    
+    private SparseMatrix countCooccurrences( 
+        DocSet ds, Progress out, List<LeafReaderContext> leaves 
+    ) {
+        try {
+            Checkpoint ckpt = checkpoint( ds, leaves, null, lexicon().size );
+            return resume( 
+                coocWorker( ds, out, leaves, null, 0, lexicon().size, ckpt )
+                    .data( this.conf.threads() ), 
+                ckpt 
+            );
+        } catch( IOException ex ) {
+            Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
+        }
+        return null;
+    }
+    
+    /**
+     * Count a separate cooccurrence matrix for each value in the given splits, in a single pass 
+     * over the documents in the given DocSet. Documents without a split value are not included in 
+     * any of the returned matrices.
+     * 
+     * See {@link CoocWorker#split(DocMap)}.
+     * 
+     * @param ds     A {@link DocSet}.
+     * @param splits A {@link DocMap}, e.g. from {@link #mapField(String)}.
+     * @return A map from split values to cooccurrence matrices, in output key order.
+     */
+    public Map<String,SparseMatrix> countSplitCooccurrences( DocSet ds, DocMap<String> splits ) {
+        Map<String,SparseMatrix> out = new LinkedHashMap<>();
+        try {
+            List<LeafReaderContext> leaves = directoryReader().leaves();
+            Checkpoint ckpt = checkpoint( ds, leaves, splits, lexicon().size );
+            SparseMatrix[] blocks = resume( 
+                coocWorker( ds, null, leaves, splits, 0, lexicon().size, ckpt )
+                    .data( this.conf.threads() ),
+                ckpt
+            ).blocks( lexicon().size );
+            BiMap<Long,String> labels = splits.outputMap();
+            for( int s = 0; s < splits.numOutputs(); s++ ) {
+                out.put( labels.get( (long) s ), s < blocks.length 
+                    ? blocks[s] : new SparseMatrix( this.conf.coocSymmetric() ) 
+                );
+            }
+        } catch( IOException ex ) {
+            Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
+        }
+        return out;
+    }
+    
+    /* count cooccurrences for the given rows in the given segments, spilling to disk if a memory 
+     * budget is set. If given a checkpoint, units recorded in it are skipped and all counts are 
+     * committed to it, leaving the returned worker empty. */
+    private CoocWorker coocWorker( 
+        DocSet ds, Progress out, List<LeafReaderContext> leaves, DocMap<String> splits, 
+        int lo, int hi, Checkpoint ckpt
+    ) throws IOException {
         int wPre = this.conf.wPre();
         int wPos = this.conf.wPos();
-        infof( "Counting coccurrences over %d documents with [ %d, %d ] windows", 
-            ds.size(), wPre, wPos
+        long mem = this.conf.coocMemMB();
+        int topk = this.conf.coocTopK();
+        if( topk > 0 && mem > 0 ) {
+            warnf( "Ignoring cooccurrence memory budget: rows are bounded to %d entries", topk );
+            mem = 0;
+        }
+        Weighting wght = Weighting.of( 
+            this.conf.coocWeights(), this.conf.coocIDF(), lexicon(), directoryReader(), wPre, wPos 
         );
-        CoocWorker wrkr = new CoocWorker(
-            lexicon(), indexReader(), this.conf.wPre(), this.conf.wPos(), out
+        infof( "Counting coccurrences over %d documents with [ %d, %d ] %s windows", 
+            ds.size(), wPre, wPos, wght
         );
-        ExecutorService exec = Executors.newFixedThreadPool( this.conf.threads() );
-        for( int i : ds ) {
-            final int task = i;
-            exec.execute( wrkr.work( task ) );
+        CoocWorker wrkr = new CoocWorker( lexicon(), directoryReader(), 
+            wPre, wPos, this.conf.coocShared() || mem > 0 || topk > 0, this.conf.coocSymmetric(), 
+            out
+        ).weights( wght );
+        if( topk > 0 ) {
+            infof( "Keeping the top %d cooccurrence counts per term", topk );
+            wrkr.top( topk );
         }
-        exec.shutdown();
-        boolean quiet = conf.quiet();
-        while( !exec.isTerminated() ) {
-            if( !quiet ) wrkr.report();
+        if( mem > 0 ) {
+            infof( "Spilling cooccurrence counts above %d MB to %s", mem, this.conf.spillDir() );
+            wrkr.spill( mem << 20, this.conf.spillDir() );
         }
-        if( !quiet ) wrkr.report();
-        return wrkr.data();
+        if( splits != null ) {
+            infof( "Counting separate cooccurrences for %d splits", splits.numOutputs() );
+            wrkr.split( splits );
+        }
+        if( lo > 0 || hi < lexicon().size ) {
+            infof( "Counting cooccurrences for rows [ %d, %d )", lo, hi );
+            wrkr.rows( lo, hi );
+        }
+        Runnable report = conf.quiet() ? null : wrkr::report;
+        int chunk = coocChunk();
+        List<String> wave = new ArrayList<>();
+        int docs = 0;
+        try( Jobs jobs = jobs() ) {
+            for( LeafReaderContext ctx : leaves ) {
+                int max = ctx.reader().maxDoc();
+                int step = wrkr.chunk( ctx, chunk, this.conf.threads() );
+                for( int from = 0; from < max; from += step ) {
+                    int to = Math.min( from + step, max );
+                    String unit = String.format( 
+                        "%d:%d-%d", lo, ctx.docBase + from, ctx.docBase + to 
+                    );
+                    if( ckpt != null && ckpt.done( unit ) ) continue;
+                    jobs.submit( wrkr.work( ctx, ds, from, to ) );
+                    if( ckpt == null ) continue;
+                    wave.add( unit );
+                    docs += to - from;
+                    if( docs >= this.conf.coocCkptDocs() ) {
+                        commit( jobs, report, wrkr, ckpt, wave );
+                        docs = 0;
+                    }
+                }
+            }
+            if( ckpt != null ) {
+                commit( jobs, report, wrkr, ckpt, wave );
+            } else {
+                jobs.await( report );
+            }
+        }
+        return wrkr;
+    }
+    
+    /* wait for all submitted tasks and commit their counts to the given checkpoint. If any of 
+     * them failed, await throws and nothing is committed, as their units would be recorded with 
+     * partial counts. */
+    private void commit( 
+        Jobs jobs, Runnable report, CoocWorker wrkr, Checkpoint ckpt, List<String> wave 
+    ) throws IOException {
+        jobs.await( report );
+        if( wave.isEmpty() ) return;
+        ckpt.commit( wrkr, this.conf.threads(), wave );
+        wave.clear();
+    }
+    
+    /* number of documents in each cooccurrence task */
+    private int coocChunk() {
+        return Math.max( 1, directoryReader().maxDoc() / ( this.conf.threads() * 16 ) );
+    }
+    
+    /* open a checkpoint for counting cooccurrences over the given documents and segments in 
+     * passes over blocks of the given number of rows with the current settings, or return null 
+     * if checkpoints are disabled. Jobs are keyed by all settings that affect counts or units, 
+     * the index's segments, the counted leaves and a hash of the given documents. */
+    private Checkpoint checkpoint( 
+        DocSet ds, List<LeafReaderContext> leaves, DocMap<String> splits, int block
+    ) throws IOException {
+        if( this.conf.coocCkptDocs() <= 0 ) return null;
+        String segs = Segments.of( directoryReader() ).segments().stream()
+            .map( Object::toString ).collect( Collectors.joining( "," ) );
+        String bases = leaves.stream()
+            .map( ( ctx ) -> Integer.toString( ctx.docBase ) ).collect( Collectors.joining( "," ) );
+        long docs = 1;
+        for( int doc : ds ) {
+            docs = docs * 31 + doc;
+        }
+        String key = String.join( ":", 
+            this.conf.fieldTxt(), 
+            String.valueOf( this.conf.minTermFreq() ),
+            String.valueOf( lexicon().size ),
+            String.valueOf( this.conf.wPre() ), 
+            String.valueOf( this.conf.wPos() ),
+            this.conf.coocWeights().name(), 
+            String.valueOf( this.conf.coocIDF() ),
+            String.valueOf( this.conf.coocSymmetric() ),
+            String.valueOf( this.conf.coocTopK() ),
+            splits == null ? "-" : this.conf.fieldSplit() + "=" + splits.numOutputs(),
+            String.valueOf( block ),
+            coocChunk() + "/" + this.conf.threads(),
+            ds.size() + "/" + Long.toHexString( docs ),
+            "[" + segs + "]",
+            "[" + bases + "]"
+        );
+        Path dir = this.conf.coocCkptDir();
+        infof( "Checkpointing cooccurrence counts every %d documents to %s", 
+            this.conf.coocCkptDocs(), dir
+        );
+        return Checkpoint.open( dir, key, this.conf.coocResume() );
+    }
+    
+    /* add the counts in all runs committed to the given checkpoint, if any, to the given matrix,
+     * and discard the checkpoint. Sums of bounded rows are pruned back to the configured number of
+     * entries. */
+    private SparseMatrix resume( SparseMatrix data, Checkpoint ckpt ) throws IOException {
+        if( ckpt == null ) return data;
+        for( Path run : ckpt.runs() ) {
+            data.merge( SparseMatrix.load( run, this.conf.coocSymmetric() ) );
+        }
+        if( this.conf.coocTopK() > 0 && !ckpt.runs().isEmpty() ) data.top( this.conf.coocTopK() );
+        ckpt.clear();
+        return data;
     }
 
     public void dumpCooccurrences( SparseMatrix data ) throws IOException {
         infof( "Dumping cooccurrence counts to %s", this.conf.coocFile() );
         SparseMatrix.save( data, this.conf.coocFile() );
+        this.dumpCSR();
+    }
+    
+    /* count cooccurrences and write them to disk, adding counts from the given triplet files */
+    private void dumpCooccurrences( DocSet ds, List<LeafReaderContext> leaves, Path... inputs )
+    throws IOException {
+        Checkpoint ckpt = this.conf.coocSplit() 
+            ? null : checkpoint( ds, leaves, null, rowBlock() );
+        if( this.conf.coocSplit() ) {
+            this.dumpSplitCooccurrences( ds, leaves, inputs );
+        } else if( ckpt != null ) {
+            for( int lo = 0; lo < lexicon().size; lo += rowBlock() ) {
+                int hi = Math.min( lo + rowBlock(), lexicon().size );
+                coocWorker( ds, null, leaves, null, lo, hi, ckpt );
+            }
+            infof( "Dumping cooccurrence counts to %s", this.conf.coocFile() );
+            List<Path> all = new ArrayList<>( Arrays.asList( inputs ) );
+            all.addAll( ckpt.runs() );
+            mergeTriplets( all, this.conf.coocFile() );
+            ckpt.clear();
+        } else if( rowBlock() < lexicon().size ) {
+            Path file = this.conf.coocFile();
+            infof( "Dumping cooccurrence counts to %s in blocks of %d rows", file, rowBlock() );
+            Path tmp = Files.createTempFile( file.toAbsolutePath().getParent(), "cooc-", ".tmp" );
+            try {
+                for( int lo = 0; lo < lexicon().size; lo += rowBlock() ) {
+                    int hi = Math.min( lo + rowBlock(), lexicon().size );
+                    Path part = Files.createTempFile( tmp.getParent(), "cooc-", ".tmp" );
+                    try {
+                        coocWorker( ds, null, leaves, null, lo, hi, null )
+                            .write( part, this.conf.threads() );
+                        Triplets.append( part, tmp );
+                    } finally {
+                        Files.delete( part );
+                    }
+                }
+                if( inputs.length == 0 ) {
+                    Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+                } else {
+                    List<Path> all = new ArrayList<>( Arrays.asList( inputs ) );
+                    all.add( tmp );
+                    mergeTriplets( all, file );
+                }
+            } finally {
+                Files.deleteIfExists( tmp );
+            }
+        } else {
+            CoocWorker wrkr = coocWorker( ds, null, leaves, null, 0, lexicon().size, null );
+            infof( "Dumping cooccurrence counts to %s", this.conf.coocFile() );
+            wrkr.write( this.conf.coocFile(), this.conf.threads(), inputs );
+        }
+        this.dumpCSR();
+    }
+    
+    /* number of rows counted in each pass over the corpus */
+    private int rowBlock() {
+        int block = this.conf.coocRowBlock();
+        return block > 0 ? block : lexicon().size;
+    }
+    
+    /* count per-split cooccurrences and write them to disk, adding them to any existing files. 
+     * Totals are the sum of all splits, documents without a split value and the given triplet 
+     * files. */
+    private void dumpSplitCooccurrences( 
+        DocSet ds, List<LeafReaderContext> leaves, Path... inputs 
+    ) throws IOException {
+        Path dir = this.conf.coocSplitDir();
+        Files.createDirectories( dir );
+        Path tmp = Files.createTempDirectory( dir, "cooc-" );
+        Path pass = tmp.resolve( "pass" );
+        try {
+            DocMap<String> splits = mapField( this.conf.fieldSplit() );
+            Checkpoint ckpt = checkpoint( ds, leaves, splits, rowBlock() );
+            Map<String,Path> parts = new LinkedHashMap<>();
+            Path unsplit = tmp.resolve( CoocWorker.UNSPLIT );
+            for( int lo = 0; lo < lexicon().size; lo += rowBlock() ) {
+                int hi = Math.min( lo + rowBlock(), lexicon().size );
+                CoocWorker wrkr = coocWorker( ds, null, leaves, splits, lo, hi, ckpt );
+                // checkpointed passes are all committed to the same checkpoint, and written once.
+                if( ckpt != null && hi < lexicon().size ) continue;
+                Path[] data = ckpt == null 
+                    ? new Path[0] : ckpt.runs().toArray( new Path[0] );
+                for( Map.Entry<String,Path> e : wrkr.writeSplits( pass, this.conf.threads(), data )
+                    .entrySet() 
+                ) {
+                    Path part = tmp.resolve( e.getValue().getFileName() );
+                    Triplets.append( e.getValue(), part );
+                    Files.delete( e.getValue() );
+                    parts.put( e.getKey(), part );
+                }
+                Triplets.append( pass.resolve( CoocWorker.UNSPLIT ), unsplit );
+                Files.delete( pass.resolve( CoocWorker.UNSPLIT ) );
+            }
+            infof( "Dumping cooccurrence counts to %s and %d splits to %s", 
+                this.conf.coocFile(), parts.size(), dir 
+            );
+            long none = Files.size( unsplit ) / SparseMatrix.size_t;
+            if( none > 0 ) {
+                infof( "Adding %d entries from documents without a split value to totals", none );
+            }
+            List<Path> all = new ArrayList<>( parts.values() );
+            all.add( unsplit );
+            all.addAll( Arrays.asList( inputs ) );
+            mergeTriplets( all, this.conf.coocFile() );
+            Map<String,Path> files = new LinkedHashMap<>();
+            for( Map.Entry<String,Path> e : parts.entrySet() ) {
+                Path part = e.getValue();
+                Path file = dir.resolve( part.getFileName() );
+                if( inputs.length > 0 && Files.exists( file ) ) {
+                    mergeTriplets( Arrays.asList( file, part ), file );
+                } else if( ckpt != null ) {
+                    mergeTriplets( Collections.singletonList( part ), file );
+                } else {
+                    Files.move( part, file, StandardCopyOption.REPLACE_EXISTING );
+                }
+                files.put( e.getKey(), file );
+            }
+            CoocWorker.writeManifest( dir, files );
+            if( ckpt != null ) ckpt.clear();
+        } finally {
+            FileUtils.clearDirectory( tmp, null, true );
+            Files.deleteIfExists( pass );
+            Files.delete( tmp );
+        }
+    }
+    
+    /* merge the given triplet files into the given file, which may be one of them. Sums of 
+     * bounded rows are pruned back to the configured number of entries per row as they are 
+     * merged, one row at a time, so the merged matrix is never loaded. */
+    private void mergeTriplets( List<Path> inputs, Path file ) throws IOException {
+        Path tmp = Files.createTempFile( file.toAbsolutePath().getParent(), "cooc-", ".tmp" );
+        try {
+            Triplets.merge( inputs, tmp, this.conf.coocTopK() );
+            Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+        } finally {
+            Files.deleteIfExists( tmp );
+        }
+    }
+    
+    /* convert dumped cooccurrence counts to CSR format, if requested */
+    private void dumpCSR() throws IOException {
+        if( !this.conf.coocCSR() ) return;
+        infof( "Converting cooccurrence counts to CSR format in %s", this.conf.csrFile() );
+        CSRMatrix.convert( this.conf.coocFile(), this.conf.csrFile() );
+    }
+    
+    /**
+     * Open the cooccurrence counts dumped in CSR format by the last call to 
+     * {@link #dumpCorpusData()} or {@link #updateCorpusData()}, if {@link Conf#coocCSR()} is set.
+     * 
+     * The file is memory-mapped, see {@link CSRMatrix#open(Path)}.
+     * 
+     * @return A {@link CSRMatrix} backed by {@link Conf#csrFile()}.
+     * @throws IOException 
+     */
+    public CSRMatrix cooccurrences() throws IOException {
+        return CSRMatrix.open( this.conf.csrFile() );
+    }
+    
+    /**
+     * Create a new job pool for corpus workers using this Lector's thread count and report 
+     * interval settings.
+     * 
+     * @return A new {@link Jobs} instance. Callers are responsible for closing it.
+     */
+    public Jobs jobs() {
+        return new Jobs( this.conf.threads(), this.conf.reportInterval() );
     }
     
     public DocSet makeDocSet( String field, String regex ) throws IOException {
@@ -210,12 +714,15 @@ public final class Lector {
     public DocSet makeDocSet( String field, String[] terms ) throws IOException {
         List<String> list = Arrays.asList( terms );
         Set<String> set = new HashSet<>( list );
-        LeafReader lr = indexReader();
+        DirectoryReader dr = directoryReader();
         if( set.isEmpty() ) {
-            return new DocSet( lr.maxDoc() );
+            return new DocSet( dr.maxDoc() );
         } else if( set.size() == 1 ) {
-            DocSet ds = new DocSet( lr.maxDoc() );
-            ds.add( lr.postings( new Term( field, set.iterator().next() ) ) );
+            DocSet ds = new DocSet( dr.maxDoc() );
+            Term term = new Term( field, set.iterator().next() );
+            for( LeafReaderContext ctx : dr.leaves() ) {
+                ds.add( ctx.reader().postings( term ), ctx.docBase );
+            }
             return ds;
         }
         List<BytesRef> collect = set.stream().map(
@@ -232,13 +739,17 @@ public final class Lector {
         }
         infof( "Building document set over field %s", field );
         CompiledAutomaton cau = new CompiledAutomaton( term );
-        LeafReader lr = indexReader();
-        TermsEnum tEnum = cau.getTermsEnum( lr.terms( field ) );
-        DocSet ds = new DocSet( lr.maxDoc() );
-        PostingsEnum reuse = null;
-        while( tEnum.next() != null ) {
-            reuse = tEnum.postings( reuse );
-            ds.add( reuse );
+        DirectoryReader dr = directoryReader();
+        DocSet ds = new DocSet( dr.maxDoc() );
+        for( LeafReaderContext ctx : dr.leaves() ) {
+            Terms terms = ctx.reader().terms( field );
+            if( terms == null ) continue;
+            TermsEnum tEnum = cau.getTermsEnum( terms );
+            PostingsEnum reuse = null;
+            while( tEnum.next() != null ) {
+                reuse = tEnum.postings( reuse );
+                ds.add( reuse, ctx.docBase );
+            }
         }
         infof( "Document set contains %d documents", ds.size() );
         return ds;
@@ -263,8 +774,13 @@ public final class Lector {
     // TODO remove pending API
     public DocSet docSample() {
         try {
-            this.sample = this.sample == null ?
-                makeDocSet( this.conf.fieldFilter(), this.conf.filterTerm() ) : this.sample;
+            String field = this.conf.fieldFilter();
+            String term  = this.conf.filterTerm();
+            if( this.sample == null ) {
+                CorpusCache cc = cache();
+                this.sample = cc == null ? makeDocSet( field, term ) :
+                    cc.docSet( field, term, () -> makeDocSet( field, term ) );
+            }
         } catch( IOException ex ) {
             Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
         }
@@ -272,11 +788,47 @@ public final class Lector {
     }
 
     public DocMap<String> mapField( String field ) throws IOException {
-        return this.mapCache.computeIfAbsent( field,
-            ( f ) -> buildDocMap( this.indexReader(), f )
-        );
+        return this.mapCache.computeIfAbsent( field, this::cachedDocMap );
+    }
+    
+    private DocMap<String> cachedDocMap( String field ) {
+        CorpusCache cc = cache();
+        int threads = this.conf.threads();
+        if( cc != null ) {
+            try {
+                return cc.docMap( field, () -> buildDocMap( directoryReader(), field, threads ) );
+            } catch( IOException ex ) {
+                Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
+            }
+        }
+        return buildDocMap( directoryReader(), field, threads );
+    }
+    
+    /**
+     * On-disk cache for this Lector's lexicon, document maps and document sample.
+     * 
+     * @return This Lector's {@link CorpusCache}, or {@code null} if caching is disabled in this 
+     *         Lector's configuration.
+     */
+    public CorpusCache cache() {
+        if( this.cache == null && this.conf.useCache() ) {
+            try {
+                this.cache = new CorpusCache( this.conf.cacheDir(), directoryReader() );
+            } catch( IOException ex ) {
+                Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
+            }
+        }
+        return this.cache;
     }
     
+    /**
+     * Atomic view over this Lector's index.
+     * 
+     * Corpus workers run directly on the segments of {@link #directoryReader()}; this merged view 
+     * is kept for external callers that need a single {@link LeafReader}.
+     * 
+     * @return A {@link LeafReader} over all segments of this Lector's index.
+     */
     public LeafReader indexReader() {
         try {
             this.ir = this.ir == null ? openIndex() : this.ir;
@@ -287,14 +839,32 @@ public final class Lector {
     }
     
     public LeafReader openIndex() throws IOException {
+        return SlowCompositeReaderWrapper.wrap( directoryReader() );
+    }
+    
+    public DirectoryReader directoryReader() {
+        try {
+            this.dr = this.dr == null ? openDirectory() : this.dr;
+        } catch( IOException ex ) {
+            Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
+        }
+        return this.dr;
+    }
+    
+    public DirectoryReader openDirectory() throws IOException {
         Path path = this.conf.indexDir();
         Directory dir = FSDirectory.open( path );
-        return SlowCompositeReaderWrapper.wrap( DirectoryReader.open( dir ) );
+        return DirectoryReader.open( dir );
     }
 
     public Lexicon lexicon() {
         try {
-            this.lxcn = this.lxcn == null ? buildLexicon() : this.lxcn;
+            if( this.lxcn == null ) {
+                CorpusCache cc = cache();
+                this.lxcn = cc == null ? buildLexicon() : cc.lexicon(
+                    this.conf.fieldTxt(), this.conf.minTermFreq(), this::buildLexicon
+                );
+            }
         } catch( IOException ex ) {
             Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
         }
@@ -305,7 +875,7 @@ public final class Lector {
         String field  = this.conf.fieldTxt();
         int minFrq    = this.conf.minTermFreq();
         infof( "Building lexicon over %s with minfreq %d", field, minFrq );
-        Lexicon out  = new Lexicon( this.indexReader(), field, minFrq );
+        Lexicon out  = new Lexicon( this.directoryReader(), field, minFrq );
         infof( "Lexicon contains %d terms with a %4.2f%% coverage over the corpus"
             , out.size(), out.cover() * 100
         );
@@ -324,42 +894,47 @@ public final class Lector {
     
     public void conf( Conf conf ) throws IOException {
         this.conf = conf;
-        this.ir.close();
+        if( this.ir != null ) this.ir.close();
         this.ir = null;
-        this.ir = indexReader();
+        if( this.cache != null ) this.cache.close();
+        this.cache = null;
+        if( this.dr != null ) this.dr.close();
+        this.dr = null;
+        this.dr = directoryReader();
+        this.mapCache.clear();
         this.lxcn = null;
         this.lxcn = lexicon();
         this.sample = null;
         this.sample = docSample();
     }
     
-    public static <V> DocMap<V> buildDocMap( LeafReader lr, String field ) {
-        DocMap dm = null;
+    public static DocMap<String> buildDocMap( LeafReader lr, String field ) {
+        return buildDocMap( lr, field, 1 );
+    }
+    
+    public static DocMap<String> buildDocMap( IndexReader ir, String field, int threads ) {
+        DocMap<String> dm = null;
         try {
             infof( "Building document map for %s", field );
-
-            TermsEnum split = lr.terms( field ).iterator();
-            SortedSet<String> splits = new TreeSet<>();
-            int tCt = 0;
-            while( split.next() != null ) {
-                splits.add( split.term().utf8ToString() );
-                tCt++;
-            }
-            infof( "Field %s contains %d output values", field, tCt );
+            MapWorker wrkr = new MapWorker( ir, field );
+            infof( "Field %s contains %d output values", field, wrkr.numOutputs() );
 
             Stopwatch sw = Stopwatch.createUnstarted();
-
-            dm = new DocMap( splits );
             infof( "Populating map..." );
             sw.start();
-            for( int i = 0; i < lr.maxDoc(); i++ ) {
-                String s = lr.document( i ).getField( field ).stringValue();
-                dm.add( i, s );
+            int chunk = Math.max( 1, ir.maxDoc() / ( threads * 8 ) );
+            try( Jobs jobs = new Jobs( threads ) ) {
+                for( LeafReaderContext ctx : ir.leaves() ) {
+                    int max = ctx.reader().maxDoc();
+                    for( int from = 0; from < max; from += chunk ) {
+                        jobs.submit( wrkr.work( ctx, from, Math.min( from + chunk, max ) ) );
+                    }
+                }
+                jobs.await();
             }
+            dm = wrkr.data();
             sw.stop();
             infof( "Document map populated in %d millis", sw.elapsed( TimeUnit.MILLISECONDS ) );
-
-            dm.finish();
         } catch( IOException ex ) {
             Logger.getLogger(Lector.class.getName() ).log( Level.SEVERE, null, ex );
         }
@@ -448,9 +1023,6 @@ public final class Lector {
 
     // TODO: move this to util clas
     private boolean checkField( String field ) throws IOException {
-        for( String f : this.indexReader().fields() ) {
-            if( f.equals( field ) ) return true;
-        }
-        return false;
+        return MultiFields.getIndexedFields( directoryReader() ).contains( field );
     }
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+import edu.columbia.incite.corpus.Segments.Segment;
+
+import static edu.columbia.incite.run.Logs.*;
+
+/**
+ * On-disk cache for derived corpus structures.
+ *
+ * Building a {@link Lexicon}, a {@link DocMap} or a {@link DocSet} requires a traversal of (parts
+ * of) an index. This class stores them in a directory after they are built, so that they can be
+ * read back on later runs over the same index without reconstruction.
+ *
+ * Each index gets its own subdirectory in the cache directory, named after the index's location, 
+ * so that several indexes can share a cache directory. Cache entries are keyed by the generation 
+ * and segments of the index commit they were built from, plus the parameters used to build them 
+ * (e.g. field and minimum frequency for lexicons). Entries built from a different commit of the 
+ * same index are never returned, and are removed when a new entry of the same kind is stored. 
+ * Files are written through a Lucene {@link FSDirectory} and carry a checksum. They are read back 
+ * sequentially and deserialized onto the heap, verifying the checksum at the end of each file. 
+ * Invalid or corrupt entries are ignored and rebuilt.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class CorpusCache implements Closeable {
+
+    /** Codec name for cache file headers **/
+    public static final String CODEC   = "IncLectorCache";
+    /** Cache file format version **/
+    public static final int    VERSION = 0;
+    /** Cache file extension **/
+    public static final String EXT     = "bin";
+
+    /** Cache entry kind for lexicons **/
+    public static final String LXCN = "lxcn";
+    /** Cache entry kind for document maps **/
+    public static final String DMAP = "dmap";
+    /** Cache entry kind for document sets **/
+    public static final String DSET = "dset";
+
+    private static final String SEP = "_";
+    private static final String KEY_SEP = "\t";
+
+    private final Directory dir;
+    private final DirectoryReader dr;
+    private final long gen;
+    private final String commit;
+
+    /**
+     * Create a new cache in the given directory for structures built over the current commit of
+     * the given index reader.
+     *
+     * Entries are stored in a subdirectory of the given path for the reader's index.
+     *
+     * @param path A directory path. Will be created if it does not exist.
+     * @param dr   A {@link DirectoryReader}.
+     * @throws IOException
+     */
+    public CorpusCache( Path path, DirectoryReader dr ) throws IOException {
+        Path sub = path.resolve( scope( dr ) );
+        Files.createDirectories( sub );
+        this.dir = FSDirectory.open( sub );
+        this.dr = dr;
+        this.gen = dr.getIndexCommit().getGeneration();
+        StringBuilder sb = new StringBuilder( Long.toString( gen ) );
+        for( Segment seg : Segments.of( dr ).segments() ) {
+            sb.append( KEY_SEP ).append( seg.toString() );
+        }
+        this.commit = sb.toString();
+    }
+
+    /**
+     * Get a lexicon for the given parameters from this cache, building it with the given source
+     * and storing it if it is not found.
+     *
+     * @param field   Lexicon field.
+     * @param minFreq Lexicon minimum term frequency.
+     * @param src     A source for a lexicon built with the given parameters.
+     * @return A {@link Lexicon}.
+     * @throws IOException
+     */
+    public Lexicon lexicon( String field, int minFreq, Source<Lexicon> src ) throws IOException {
+        return get( LXCN, key( LXCN, field, Integer.toString( minFreq ) ),
+            ( in ) -> Lexicon.read( dr, in ), Lexicon::write, src
+        );
+    }
+
+    /**
+     * Get a document map for the given field from this cache, building it with the given source
+     * and storing it if it is not found.
+     *
+     * @param field Mapped field.
+     * @param src   A source for a finished document map over the given field.
+     * @return A {@link DocMap}.
+     * @throws IOException
+     */
+    public DocMap<String> docMap( String field, Source<DocMap<String>> src ) throws IOException {
+        return get( DMAP, key( DMAP, field ), DocMap::read, DocMap::write, src );
+    }
+
+    /**
+     * Get a document set for the given field and term expression from this cache, building it with
+     * the given source and storing it if it is not found.
+     *
+     * @param field Filter field.
+     * @param terms Filter term expression.
+     * @param src   A source for a document set built with the given parameters.
+     * @return A {@link DocSet}.
+     * @throws IOException
+     */
+    public DocSet docSet( String field, String terms, Source<DocSet> src ) throws IOException {
+        return get( DSET, key( DSET, field, terms ), DocSet::read, DocSet::write, src );
+    }
+
+    private <T> T get( String kind, String key, In<T> in, Out<T> out, Source<T> src )
+    throws IOException {
+        String name = String.join( SEP,
+            kind, Long.toString( gen, Character.MAX_RADIX ), Integer.toHexString( key.hashCode() )
+        ) + "." + EXT;
+        T t = load( name, key, in );
+        if( t != null ) {
+            infof( "Loaded %s from cache file %s", kind, name );
+            return t;
+        }
+        t = src.get();
+        if( t != null ) {
+            try {
+                store( name, key, t, out );
+                prune( kind );
+            } catch( IOException ex ) {
+                warnf( "Failed to store %s in cache: %s", kind, ex.getMessage() );
+            }
+        }
+        return t;
+    }
+
+    private <T> T load( String name, String key, In<T> reader ) {
+        if( !Arrays.asList( list() ).contains( name ) ) return null;
+        try( ChecksumIndexInput in = dir.openChecksumInput( name, IOContext.READONCE ) ) {
+            CodecUtil.checkHeader( in, CODEC, VERSION, VERSION );
+            if( !key.equals( in.readString() ) ) return null;
+            T t = reader.read( in );
+            CodecUtil.checkFooter( in );
+            return t;
+        } catch( IOException | RuntimeException ex ) {
+            warnf( "Ignoring invalid cache file %s: %s", name, ex.getMessage() );
+            return null;
+        }
+    }
+
+    private <T> void store( String name, String key, T t, Out<T> writer ) throws IOException {
+        String tmp = name + ".tmp";
+        try( IndexOutput out = dir.createOutput( tmp, IOContext.DEFAULT ) ) {
+            CodecUtil.writeHeader( out, CODEC, VERSION );
+            out.writeString( key );
+            writer.write( t, out );
+            CodecUtil.writeFooter( out );
+        }
+        if( Arrays.asList( list() ).contains( name ) ) dir.deleteFile( name );
+        dir.renameFile( tmp, name );
+    }
+
+    /* remove entries of the given kind built from other commits of this index */
+    private void prune( String kind ) throws IOException {
+        String cur = kind + SEP + Long.toString( gen, Character.MAX_RADIX ) + SEP;
+        for( String file : list() ) {
+            if( file.startsWith( kind + SEP ) && !file.startsWith( cur ) ) dir.deleteFile( file );
+        }
+    }
+
+    private String[] list() {
+        try {
+            return dir.listAll();
+        } catch( IOException ex ) {
+            return new String[0];
+        }
+    }
+
+    /* subdirectory name for the given reader's index: its directory's name and location hash */
+    private static String scope( DirectoryReader dr ) {
+        Directory d = FilterDirectory.unwrap( dr.directory() );
+        if( !( d instanceof FSDirectory ) ) {
+            return d.getClass().getSimpleName() + SEP + Integer.toHexString( d.hashCode() );
+        }
+        Path idx = ( (FSDirectory) d ).getDirectory().toAbsolutePath().normalize();
+        Path name = idx.getFileName();
+        return ( name != null ? name.toString() : "index" ) 
+            + SEP + Integer.toHexString( idx.toString().hashCode() );
+    }
+
+    private String key( String... params ) {
+        return String.join( KEY_SEP, params ) + KEY_SEP + commit;
+    }
+
+    @Override
+    public void close() throws IOException {
+        dir.close();
+    }
+
+    /**
+     * Source for cached objects, typically a method that builds them from an index.
+     * @param <T> Type for cached objects.
+     */
+    public interface Source<T> {
+        /**
+         * Build an object.
+         * @return A new T instance.
+         * @throws IOException
+         */
+        public T get() throws IOException;
+    }
+
+    private interface In<T> {
+        public T read( DataInput in ) throws IOException;
+    }
+
+    private interface Out<T> {
+        public void write( T t, DataOutput out ) throws IOException;
+    }
+}
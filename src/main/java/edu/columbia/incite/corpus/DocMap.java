@@ -17,6 +17,8 @@
 package edu.columbia.incite.corpus;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.function.IntFunction;
 import java.util.logging.Level;
@@ -25,10 +27,13 @@ import java.util.logging.Logger;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableBiMap;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
 import org.apache.lucene.util.IntsRef;
 import org.apache.lucene.util.fst.Builder;
 import org.apache.lucene.util.fst.FST;
 import org.apache.lucene.util.fst.FST.INPUT_TYPE;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
 import org.apache.lucene.util.fst.PositiveIntOutputs;
 import org.apache.lucene.util.fst.Util;
 
@@ -77,6 +82,7 @@ public class DocMap<T> implements IntFunction<T> {
     private Builder<Long> bldr    = new Builder( INPUT_TYPE.BYTE4, PositiveIntOutputs.getSingleton() );
     private BiMap<Long,T> outputs = HashBiMap.create();
     private FST<Long> fst;
+    private volatile int[] cols;
     
     private boolean sorted = true;
     private boolean open   = true;
@@ -214,6 +220,43 @@ public class DocMap<T> implements IntFunction<T> {
         throw new UnsupportedOperationException( "Not supported yet." );
     }
     
+    /**
+     * Compile this DocMap into a dense table of output keys indexed by document number.
+     * 
+     * The returned array contains, for every document number between 0 and the largest document 
+     * added to this map, the internal numeric key of its associated T value (see 
+     * {@link #outputKey(java.lang.Object)}), or -1 for documents with no associated value. Output 
+     * keys are contiguous from 0 to {@link #numOutputs()} - 1, so they can be used directly as 
+     * e.g. column numbers.
+     * 
+     * The table is built on first call with a single sequential traversal of the underlying FST 
+     * and cached; it costs one int per document, in exchange for turning lookups into an array 
+     * read.
+     * 
+     * @return An {@code int[]} of output keys indexed by document number. Shared, do not modify.
+     * @throws IOException 
+     */
+    public int[] columns() throws IOException {
+        if( this.fst == null ) throw new IllegalStateException( "Querying unfinished DocMap" );
+        int[] out = this.cols;
+        if( out == null ) {
+            synchronized( this ) {
+                if( this.cols == null ) {
+                    int[] tmp = new int[ lastK + 1 ];
+                    Arrays.fill( tmp, -1 );
+                    IntsRefFSTEnum<Long> fEnum = new IntsRefFSTEnum<>( fst );
+                    IntsRefFSTEnum.InputOutput<Long> io;
+                    while( ( io = fEnum.next() ) != null ) {
+                        tmp[ io.input.ints[ io.input.offset ] ] = (int) (long) io.output;
+                    }
+                    this.cols = tmp;
+                }
+                out = this.cols;
+            }
+        }
+        return out;
+    }
+    
     private IntsRef makeK( int k ) {
         tKey.get().ints[0] = k;
         return tKey.get();
@@ -252,6 +295,50 @@ public class DocMap<T> implements IntFunction<T> {
         }
     }
 
+    /**
+     * Write a finished DocMap with string outputs to the given output.
+     * 
+     * @param dm  A finished DocMap.
+     * @param out A {@link DataOutput}.
+     * @throws IOException 
+     */
+    public static void write( DocMap<String> dm, DataOutput out ) throws IOException {
+        if( dm.open ) throw new IllegalStateException( "Writing unfinished DocMap" );
+        out.writeByte( (byte) ( dm.sorted ? 1 : 0 ) );
+        out.writeInt( dm.lastK );
+        out.writeVInt( dm.outputs.size() );
+        for( Map.Entry<Long,String> e : dm.outputs.entrySet() ) {
+            out.writeVLong( e.getKey() );
+            out.writeString( e.getValue() );
+        }
+        out.writeByte( (byte) ( dm.fst != null ? 1 : 0 ) );
+        if( dm.fst != null ) dm.fst.save( out );
+    }
+    
+    /**
+     * Read a DocMap written by {@link #write(DocMap, DataOutput)} from the given input.
+     * 
+     * @param in A {@link DataInput}.
+     * @return A new, finished DocMap.
+     * @throws IOException 
+     */
+    public static DocMap<String> read( DataInput in ) throws IOException {
+        DocMap<String> dm = new DocMap<>();
+        dm.sorted = in.readByte() != 0;
+        dm.lastK = in.readInt();
+        int n = in.readVInt();
+        for( int i = 0; i < n; i++ ) {
+            long v = in.readVLong();
+            dm.outputs.put( v, in.readString() );
+            dm.lastV = Math.max( dm.lastV, v );
+        }
+        dm.outputs = ImmutableBiMap.copyOf( dm.outputs );
+        dm.fst = in.readByte() != 0 ? new FST<>( in, PositiveIntOutputs.getSingleton() ) : null;
+        dm.bldr = null;
+        dm.open = false;
+        return dm;
+    }
+
     /**
      * Thrown when input values for a DocMap are added out of order.
      */
@@ -22,10 +22,13 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.function.Predicate;
 
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
 import org.apache.lucene.util.BitSet;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.FixedBitSet;
@@ -81,6 +84,10 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
     public DocSet( int maxDoc, boolean sparse ) {
         this.bs = sparse ? new SparseFixedBitSet( maxDoc ) : new FixedBitSet( maxDoc );
     }
+    
+    private DocSet( BitSet bs ) {
+        this.bs = bs;
+    }
 
     /**
      * Add the given document number to this DocSet.
@@ -114,6 +121,28 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
         this.size = -1;
     }
 
+    /**
+     * Add all documents from the given segment-local {@link DocIdSetIterator} instance, rebased 
+     * to this DocSet's document numbers by adding the given docBase.
+     * 
+     * The state of the iterator after this method returns is undefined.
+     * 
+     * @param docs A {@link DocIdSetIterator} instance over a segment's documents.
+     * @param base The segment's docBase.
+     * @throws IOException
+     */
+    public void add( DocIdSetIterator docs, int base ) throws IOException {
+        if( docs == null ) return;
+        if( base == 0 ) {
+            add( docs );
+            return;
+        }
+        for( int d = docs.nextDoc(); d != DocIdSetIterator.NO_MORE_DOCS; d = docs.nextDoc() ) {
+            this.bs.set( base + d );
+        }
+        this.size = -1;
+    }
+
     /**
      * Produce a {@link PostingsEnum} instance containing only the documents in the given 
      * {@link PostingsEnum} instance that are also contained in this DocSet.
@@ -124,6 +153,21 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
     public PostingsEnum filter( PostingsEnum docs ) {
         return new FilteredPostingsEnum( docs, this.bs );
     }
+    
+    /**
+     * Produce a {@link PostingsEnum} instance containing only the documents in the given 
+     * segment-local {@link PostingsEnum} instance that are also contained in this DocSet.
+     * 
+     * Membership is tested on document numbers rebased with the segment's docBase, but the 
+     * returned enumeration reports segment-local document numbers, like the given one.
+     * 
+     * @param docs A {@link PostingsEnum} instance over the given segment's documents.
+     * @param ctx  A segment's {@link LeafReaderContext}.
+     * @return A {@link PostingsEnum} instance containing only documents already in this DocSet
+     */
+    public PostingsEnum filter( PostingsEnum docs, LeafReaderContext ctx ) {
+        return new FilteredPostingsEnum( docs, this.bs, ctx.docBase, ctx.reader().maxDoc() );
+    }
 
     /**
      * Advanced: Get a reference to this DocSet's underlying {@link BitSet}.
@@ -230,6 +274,45 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
         return tgt;
     }
     
+    /**
+     * Write a DocSet to the given output.
+     * 
+     * DocSets are serialized as their capacity followed by the words of a dense bitset, regardless 
+     * of their internal representation.
+     * 
+     * @param ds  A DocSet.
+     * @param out A {@link DataOutput}.
+     * @throws IOException 
+     */
+    public static void write( DocSet ds, DataOutput out ) throws IOException {
+        int maxDoc = ds.bs.length();
+        long[] words = new long[ FixedBitSet.bits2words( maxDoc ) ];
+        for( int d : ds ) {
+            words[ d >> 6 ] |= 1L << d;
+        }
+        out.writeVInt( maxDoc );
+        out.writeVInt( words.length );
+        for( long w : words ) {
+            out.writeLong( w );
+        }
+    }
+    
+    /**
+     * Read a DocSet written by {@link #write(DocSet, DataOutput)} from the given input.
+     * 
+     * @param in A {@link DataInput}.
+     * @return A new DocSet backed by a dense bitset.
+     * @throws IOException 
+     */
+    public static DocSet read( DataInput in ) throws IOException {
+        int maxDoc = in.readVInt();
+        long[] words = new long[ in.readVInt() ];
+        for( int i = 0; i < words.length; i++ ) {
+            words[i] = in.readLong();
+        }
+        return new DocSet( new FixedBitSet( words, maxDoc ) );
+    }
+    
     // TODO: add copy constructor for non-destructive set operations.
     /**
      * Produce a DocSet that is equal to the intersection between the two given {@code ds1} and 
@@ -262,17 +345,29 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
      * 
      * Lucene's BitSet filtering facilities only apply to DocIdSetIterators. This class implements 
      * all of PostingsEnum methods to allow access to position and payload data.
+     * 
+     * Source enumerations over a single segment of a larger index are supported by giving the 
+     * segment's docBase and maxDoc: bits are tested at {@code base + doc}, but document numbers 
+     * are reported relative to the segment.
      */
     public class FilteredPostingsEnum extends PostingsEnum {
 
         private final BitSet bs;
         private final PostingsEnum src;
+        private final int base;
+        private final int max;
 
         private int doc = -1;
 
         public FilteredPostingsEnum( PostingsEnum pEnum, BitSet bs ) {
+            this( pEnum, bs, 0, bs.length() );
+        }
+        
+        public FilteredPostingsEnum( PostingsEnum pEnum, BitSet bs, int base, int maxDoc ) {
             this.src = pEnum;
             this.bs = bs;
+            this.base = base;
+            this.max = Math.min( maxDoc, bs.length() - base );
         }
 
         @Override
@@ -289,22 +384,27 @@ public class DocSet implements Predicate<Integer>, Iterable<Integer> {
         @Override
         public int advance( int target ) throws IOException {
             while( doc != PostingsEnum.NO_MORE_DOCS ) {
+                if( target >= max ) {
+                    doc = PostingsEnum.NO_MORE_DOCS;
+                    break;
+                }
+                
                 // get next bit.
-                int nb = bs.nextSetBit( target );
-                if( nb == PostingsEnum.NO_MORE_DOCS ) {
+                int nb = bs.nextSetBit( base + target );
+                if( nb == PostingsEnum.NO_MORE_DOCS || nb - base >= max ) {
                     doc = PostingsEnum.NO_MORE_DOCS;
                     break;
                 }
 
                 // get next doc
-                int nd = src.advance( nb );
-                if( nd > bs.length() ) {
+                int nd = src.advance( nb - base );
+                if( nd >= max ) {
                     doc = PostingsEnum.NO_MORE_DOCS;
                     break;
                 }
 
                 // if next doc is bit, return
-                if( bs.get( nd ) ) {
+                if( bs.get( base + nd ) ) {
                     doc = nd;
                     break;
                 } else { // search from next bit.
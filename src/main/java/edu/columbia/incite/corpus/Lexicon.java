@@ -16,37 +16,46 @@
  */
 package edu.columbia.incite.corpus;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-import com.google.common.collect.ImmutableBiMap;
-
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
+import java.util.NoSuchElementException;
 import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.function.Function;
 
-import com.google.common.collect.ImmutableSortedMap;
-import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.apache.lucene.util.IntsRefBuilder;
 import org.apache.lucene.util.automaton.Automata;
 import org.apache.lucene.util.automaton.Automaton;
 import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
 
 //import edu.columbia.incite.obo.OBOConf;
 
 import edu.columbia.incite.corpus.Lexicon.Word;
 import edu.columbia.incite.util.FileUtils;
+import edu.columbia.incite.util.DSVReader;
 import edu.columbia.incite.util.DSVWriter;
 import edu.columbia.incite.util.DSVWriter.Accesor;
 
@@ -64,19 +73,29 @@ import edu.columbia.incite.util.DSVWriter.Accesor;
  * frequency), and associate each term's internal string representation to their canonical 
  * representation as UTF8 byte sequences.
  * 
- * Terms in the Lexicon are sorted in descending term frequency and <em>not</em> lexicographically. 
- * 
+ * Terms in the Lexicon are sorted in descending term frequency and <em>not</em> lexicographically.
+ * Pinned lexicons (see {@link #Lexicon(IndexReader, String, int, List)}) keep the order of the
+ * lexicon they were read from, even if frequencies have changed since.
+ *
  * THIS CANONICAL ORDER IS USED THROUGHOUT ALL CORPUS DATASETS IN THIS PACKAGE. Most notably, a 
  * term's index number in this canonical ordering determines its index in all 
  * cooccurrence matrices; these are generally sparse, so inconsistencies in order/indexes will make 
  * it impossible to read them.
  * 
+ * Term data is stored in flat arrays indexed by canonical index: the UTF8 bytes of all terms are 
+ * concatenated in a single byte pool with an array of offsets, next to arrays of term and 
+ * document frequencies. Term to index lookups go through an {@link FST} that maps each term's 
+ * bytes to its index, so no per-term objects are retained; {@link Word} instances are created 
+ * on demand as views over these arrays.
+ * 
  * @author José Tomás Atria <jtatria@gmail.com>
  */
 public class Lexicon implements Iterable<Word> {
     
     /** Default field name for term id in all datasets **/
     public static final String TERM_ID = "_term_";
+    /** Index value for terms not contained in a lexicon. See {@link Cursor}. **/
+    public static final int NONE = -1;
     
     /** Index field over which this lexicon is constructed **/
     public final String field;    
@@ -92,70 +111,181 @@ public class Lexicon implements Iterable<Word> {
     /** Lexicon cardinality **/
     public final int    size;
 
-    private final LeafReader ir;
+    private final IndexReader ir;
+    
+    private final byte[] pool;
+    private final int[]  offs;
+    private final long[] tf;
+    private final long[] df;
     
-    private final BiMap<Integer,BytesRef>  ind2trms;
-    private final SortedMap<Integer,Word>  ind2wrds;
-    private final SortedMap<BytesRef,Word> trm2wrds;
+    private final int[] srt2inds;
     
+    private final FST<Long> trm2inds;
     private final CompiledAutomaton cau;
-
+    
     /**
      * Construct a new lexicon over the given field in the given index with the given frequency 
      * threshold.
      * 
-     * @param ir An atomic {@link LeafReader}.
+     * @param ir An {@link IndexReader}. Composite readers are read through their merged view.
      * @param field Index field name.
      * @param minFreq Minimum term frequency
      * @throws IOException 
      */
-    public Lexicon( LeafReader ir, String field, int minFreq ) throws IOException {
+    public Lexicon( IndexReader ir, String field, int minFreq ) throws IOException {
+        this( ir, field, minFreq, select( ir, field, minFreq ) );
+    }
+    
+    /**
+     * Construct a new lexicon over the given field in the given index, pinned to the given list 
+     * of terms.
+     * 
+     * Pinned lexicons contain exactly the given terms, in the given order, regardless of their 
+     * current frequencies in the index; term statistics are read from the index as usual. This 
+     * allows corpus datasets produced with a previous version of a lexicon to be extended with 
+     * counts from new documents without changing any term's index.
+     * 
+     * @param ir An {@link IndexReader}. Composite readers are read through their merged view.
+     * @param field Index field name.
+     * @param minFreq Minimum term frequency used to produce the given terms.
+     * @param terms A list of terms, in canonical order.
+     * @throws IOException 
+     */
+    public Lexicon( IndexReader ir, String field, int minFreq, List<BytesRef> terms ) 
+    throws IOException {
+        this( ir, field, minFreq, lookup( ir, field, terms ) );
+    }
+    
+    private Lexicon( IndexReader ir, String field, int minFreq, Entries entries ) 
+    throws IOException {
         this.ir      = ir;
         this.field   = field;
         this.minFreq = minFreq;
         
-        Terms terms = ir.terms( field );
+        Terms terms = MultiFields.getTerms( ir, field );
         this.uFreq = terms.getSumTotalTermFreq();
         
-        // Collect terms with frequency above threshold.
-        TermsEnum tEnum = terms.iterator();
-        SortedSet<Word> tmp = new TreeSet<>();
+        // Trim term data
+        this.size = entries.size;
+        this.pool = Arrays.copyOf( entries.pool, entries.offs[size] );
+        this.offs = Arrays.copyOf( entries.offs, size + 1 );
+        this.tf   = Arrays.copyOf( entries.tf, size );
+        this.df   = Arrays.copyOf( entries.df, size );
+        
+        // Save coverage statistics
         long ttf = 0;
+        for( int i = 0; i < size; i++ ) {
+            ttf += tf[i];
+        }
+        this.nFreq = ttf;
+        this.cover = (double) nFreq / (double) uFreq;
+        
+        // Index (i.e. byte) order
+        final int[] srt = new int[ size ];
+        for( int i = 0; i < size; i++ ) srt[i] = i;
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare( int i, int j ) {
+                return compareTerm( srt[i], term( srt[j] ) );
+            }
+
+            @Override
+            protected void swap( int i, int j ) {
+                int tmp = srt[i];
+                srt[i] = srt[j];
+                srt[j] = tmp;
+            }
+        }.sort( 0, size );
+        for( int i = 1; i < size; i++ ) {
+            if( compareTerm( srt[i - 1], term( srt[i] ) ) == 0 ) {
+                throw new IllegalArgumentException( String.format( 
+                    "Duplicate term in lexicon: %s", getTerm( srt[i] )
+                ) );
+            }
+        }
+        this.srt2inds = srt;
+        
+        // Compile term index and membership lexicon, from terms in byte order
+        List<BytesRef> sorted = new ArrayList<>( size );
+        PositiveIntOutputs outs = PositiveIntOutputs.getSingleton();
+        Builder<Long> fstb = new Builder<>( FST.INPUT_TYPE.BYTE1, outs );
+        IntsRefBuilder ints = new IntsRefBuilder();
+        for( int i = 0; i < size; i++ ) {
+            BytesRef term = term( srt[i] );
+            sorted.add( term );
+            fstb.add( Util.toIntsRef( term, ints ), (long) srt[i] );
+        }
+        this.trm2inds = fstb.finish();
+        Automaton au = Automata.makeStringUnion( sorted );
+        this.cau = new CompiledAutomaton( au );
+    }
+    
+    /* Collect terms with frequency above threshold, in canonical order */
+    private static Entries select( IndexReader ir, String field, int minFreq ) throws IOException {
+        TermsEnum tEnum = MultiFields.getTerms( ir, field ).iterator();
+        Entries all = new Entries( 1024 );
         while( tEnum.next() != null ) {
             long tf = tEnum.totalTermFreq();
-            long df = tEnum.docFreq();
             if( tf >= minFreq ) {
-                ttf += tf;
-                tmp.add( new Word( tEnum.term(), tf, df ) );
+                all.add( tEnum.term(), tf, tEnum.docFreq() );
             } else {
                 // TODO: do something with OOL terms?
             }
         }
-        // Save coverage statistics
-        this.nFreq = ttf;
-        this.cover = (double) nFreq / (double) uFreq;
-        
-        // Build internal maps
-        BiMap<Integer,BytesRef>  ind_tmp = HashBiMap.create();
-        SortedMap<Integer,Word>  iwd_tmp = new TreeMap<>();
-        SortedMap<BytesRef,Word> kwd_tmp = new TreeMap<>();
-        
-        int key = 0;
-        for( Word w : tmp ) {
-            ind_tmp.put( key, w.term );
-            iwd_tmp.put( key, w );
-            kwd_tmp.put( w.term, w );
-            key++;
+        final int[] order = new int[ all.size ];
+        for( int i = 0; i < order.length; i++ ) order[i] = i;
+        // descending tf, then byte order; terms are already in byte order and the sort is stable.
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare( int i, int j ) {
+                return Long.compare( all.tf[ order[j] ], all.tf[ order[i] ] );
+            }
+
+            @Override
+            protected void swap( int i, int j ) {
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }.sort( 0, order.length );
+        Entries out = new Entries( order.length );
+        for( int i = 0; i < order.length; i++ ) {
+            out.add( all.term( order[i] ), all.tf[ order[i] ], all.df[ order[i] ] );
         }
-        this.size = key;
-        
-        this.ind2trms = ImmutableBiMap.copyOf( ind_tmp );
-        this.ind2wrds = ImmutableSortedMap.copyOf( iwd_tmp );
-        this.trm2wrds = ImmutableSortedMap.copyOf( kwd_tmp );
-        
-        // Compile membership lexicon
-        Automaton au = Automata.makeStringUnion( this.trm2wrds.keySet() );
-        this.cau = new CompiledAutomaton( au );
+        return out;
+    }
+    
+    /* Look up current statistics for the given terms, in the given order */
+    private static Entries lookup( IndexReader ir, String field, List<BytesRef> terms ) 
+    throws IOException {
+        TermsEnum tEnum = MultiFields.getTerms( ir, field ).iterator();
+        Entries out = new Entries( terms.size() );
+        for( BytesRef term : terms ) {
+            if( tEnum.seekExact( term ) ) {
+                out.add( term, tEnum.totalTermFreq(), tEnum.docFreq() );
+            } else {
+                out.add( term, 0, 0 );
+            }
+        }
+        return out;
+    }
+    
+    /* View over the bytes of the term at the given index */
+    private BytesRef term( int idx ) {
+        return new BytesRef( pool, offs[idx], offs[idx + 1] - offs[idx] );
+    }
+    
+    /* Compare the term at the given index to the given term, in unsigned byte order */
+    private int compareTerm( int idx, BytesRef term ) {
+        int a = offs[idx];
+        int aEnd = offs[idx + 1];
+        int b = term.offset;
+        int bEnd = term.offset + term.length;
+        while( a < aEnd && b < bEnd ) {
+            int c = ( pool[a++] & 0xff ) - ( term.bytes[b++] & 0xff );
+            if( c != 0 ) return c;
+        }
+        return ( aEnd - a ) - ( bEnd - b );
     }
     
     /**
@@ -198,8 +328,8 @@ public class Lexicon implements Iterable<Word> {
      */
     public String[] terms() {
         String[] out = new String[ this.size ];
-        for( Integer i : this.ind2trms.keySet() ) {
-            out[i] = this.ind2trms.get( i ).utf8ToString();
+        for( int i = 0; i < this.size; i++ ) {
+            out[i] = term( i ).utf8ToString();
         }
         return out;
     }
@@ -215,11 +345,69 @@ public class Lexicon implements Iterable<Word> {
     
     /**
      * Term index.
+     * 
+     * Terms are looked up in this lexicon's {@link FST}, in time proportional to their length.
+     * 
      * @param term A term's {@link BytesRef} representation.
-     * @return The index of the given term in this lexicon.
+     * @return The index of the given term in this lexicon, or {@link #NONE} if not contained.
      */
     public int getIndex( BytesRef term ) {
-        return ind2trms.inverse().get( term );
+        if( trm2inds == null ) return NONE;
+        try {
+            Long idx = Util.get( trm2inds, term );
+            return idx == null ? NONE : idx.intValue();
+        } catch( IOException ex ) {
+            // never thrown by FSTs held in memory.
+            throw new UncheckedIOException( ex );
+        }
+    }
+    
+    /**
+     * Term at sorted position.
+     * 
+     * Sorted positions enumerate the terms in this lexicon in index order, i.e. the unicode 
+     * ordering of their UTF8 bytes used by Lucene's term dictionaries, as opposed to the canonical 
+     * (descending frequency) order. Contiguous ranges of sorted positions correspond to contiguous 
+     * ranges of an index's terms, which is useful to split term-wise work into chunks.
+     * 
+     * The returned reference points to this lexicon's term data and must not be modified.
+     * 
+     * @param srt A sorted position, between 0 and {@link #size()}.
+     * @return The {@link BytesRef} for the term at the given sorted position.
+     */
+    public BytesRef sortedTerm( int srt ) {
+        return term( srt2inds[srt] );
+    }
+    
+    /**
+     * Term index at sorted position.
+     * 
+     * See {@link #sortedTerm(int)} for details.
+     * 
+     * @param srt A sorted position, between 0 and {@link #size()}.
+     * @return The index in this lexicon of the term at the given sorted position.
+     */
+    public int sortedIndex( int srt ) {
+        return srt2inds[srt];
+    }
+    
+    /**
+     * Number of terms in this lexicon's field that are above this lexicon's frequency threshold 
+     * but are not contained in it.
+     * 
+     * This is always 0 for lexicons built from an index, but may be positive for pinned lexicons 
+     * used over an index that has grown since the lexicon's terms were selected.
+     * 
+     * @return The number of terms that would be added to this lexicon if it was built again.
+     * @throws IOException 
+     */
+    public int unlisted() throws IOException {
+        TermsEnum tEnum = MultiFields.getTerms( ir, field ).iterator();
+        int out = 0;
+        while( tEnum.next() != null ) {
+            if( tEnum.totalTermFreq() >= minFreq && !contains( tEnum.term() ) ) out++;
+        }
+        return out;
     }
     
     /**
@@ -228,7 +416,7 @@ public class Lexicon implements Iterable<Word> {
      * @return The term at the position of the given index in this lexicon.
      */
     public String getTerm( int idx ) {
-        return ind2wrds.get( idx ).toString();
+        return term( idx ).utf8ToString();
     }
     
     /**
@@ -237,7 +425,18 @@ public class Lexicon implements Iterable<Word> {
      * @return The {@link Word} for the term at the position of the given index in this lexicon.
      */
     public Word getWord( int idx ) {
-        return ind2wrds.get( idx );
+        return new Word( idx, term( idx ), tf[idx], df[idx] );
+    }
+    
+    /**
+     * Create a new cursor over this lexicon's terms in index order.
+     * 
+     * See {@link Cursor} for details.
+     * 
+     * @return A new {@link Cursor}, positioned before the first term.
+     */
+    public Cursor cursor() {
+        return new Cursor();
     }
     
     /**
@@ -252,26 +451,79 @@ public class Lexicon implements Iterable<Word> {
         return src.intersect( cau, null );
     }
 
+    /**
+     * Term to index mapping for term enumerations in index order.
+     * 
+     * A cursor maps the terms produced by a {@link TermsEnum} to their indices in this lexicon, 
+     * or {@link #NONE} for terms not contained in it, by advancing through this lexicon's terms 
+     * in sorted order (see {@link #sortedTerm(int)}). Lookups compare term bytes against a 
+     * narrowing range of sorted positions found by exponential search from the last match, so 
+     * no hashing is involved and dense enumerations, like those of a term vector, advance by 
+     * one or two comparisons per term. The position of a term in an enumeration works as a 
+     * term ordinal for codecs that do not support {@link TermsEnum#ord()}.
+     * 
+     * Terms must be presented in ascending order; call {@link #reset()} before each new 
+     * enumeration. Cursors are not thread-safe, but any number of them can be used concurrently.
+     */
+    public final class Cursor {
+        private int pos;
+        
+        private Cursor() {}
+        
+        /**
+         * Rewind this cursor to the first term in its lexicon.
+         */
+        public void reset() {
+            this.pos = 0;
+        }
+        
+        /**
+         * Lexicon index for the given term.
+         * 
+         * @param term A term, greater than all terms previously passed to this cursor since the 
+         *             last call to {@link #reset()}.
+         * @return The term's index in this cursor's lexicon, or {@link #NONE} if not contained.
+         */
+        public int index( BytesRef term ) {
+            int hi = pos;
+            int step = 1;
+            while( hi < size && compareTerm( srt2inds[hi], term ) < 0 ) {
+                pos = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            hi = hi < size ? hi : size;
+            while( pos < hi ) {
+                int mid = ( pos + hi ) >>> 1;
+                if( compareTerm( srt2inds[mid], term ) < 0 ) pos = mid + 1; else hi = mid;
+            }
+            if( pos < size && compareTerm( srt2inds[pos], term ) == 0 ) return srt2inds[pos++];
+            return NONE;
+        }
+    }
+    
     /**
      * Generalized positional weights
      * This function produces a suitable weighting factor between two token positions taking into 
      * account both the distance between the tokens and the weights associated to the term's 
      * at both positions.
      * 
-     * TODO: implement. The idea is to remove positional weighting from the cooccurrence worker to 
-     * further encapsulate parameters.
-     * 
-     * NB: NOT IMPLEMENTED YET.
+     * Weights are harmonic in the distance between the two positions, for a window of 10 
+     * tokens on each side and without term weights, matching the default cooccurrence settings.
      * 
      * @param pre_i Term index for the leading token.
      * @param pre_p Position for the leading token.
      * @param pos_i Term index for the trailing token.
      * @param pos_p Position of the trailing token.
-     * @return A weighting factor between the two token positions.
-     * @throws UnsupportedOperationException, always
+     * @return A weighting factor between the two token positions, or zero if they are farther 
+     *         apart than the default window width.
+     * @deprecated Use {@link edu.columbia.incite.corpus.work.Weighting#weight(int,int,int,int)}.
      */
+    @Deprecated
     public double weight( int pre_i, int pre_p, int pos_i, int pos_p ) {
-        throw new UnsupportedOperationException( "Generalized weights not supported yet." );
+        int d = Math.abs( pre_p - pos_p );
+        if( d == 0 || d > 10 ) return 0d;
+        return 1d / d;
     }
         
     /**
@@ -285,33 +537,23 @@ public class Lexicon implements Iterable<Word> {
      * @return A copy of this lexicon as a {@link LxcnArrays} instance.
      */
     public LxcnArrays arrays() {
-        int n = size();
-        String[] k = new String[n];
-        long[] tf  = new long[n];
-        long[] df  = new long[n];
-        int i = 0;
-        for( Word w : this ) {
-            k[i]  = w.term.utf8ToString();
-            tf[i] = w.tf;
-            df[i] = w.df;
-            i++;
-        }
-        return new LxcnArrays( k, tf, df );
+        return new LxcnArrays( terms(), tf.clone(), df.clone() );
     }
     
     @Override
     public Iterator<Word> iterator() {
         return new Iterator<Word>() {
-            private Iterator<Map.Entry<Integer,Word>> it = ind2wrds.entrySet().iterator();
+            private int idx = 0;
             
             @Override
             public boolean hasNext() {
-                return it.hasNext();
+                return idx < size;
             }
 
             @Override
             public Word next() {
-                return it.next().getValue();
+                if( !hasNext() ) throw new NoSuchElementException();
+                return getWord( idx++ );
             }
         };
     }
@@ -332,23 +574,101 @@ public class Lexicon implements Iterable<Word> {
     public static void write( Lexicon lxcn, Path file ) throws IOException {        
         DSVWriter csv = new DSVWriter( new LxcnAccesor() ).rowIdHead( Lexicon.TERM_ID );
         try ( Writer w = FileUtils.getWriter( file ) ) {
-            csv.write( lxcn.ind2wrds, w );
+            csv.write( lxcn, w );
+        }
+    }
+    
+    /**
+     * Read a lexicon's terms from a file written by {@link #write(Lexicon, Path)} and construct a 
+     * pinned lexicon over them in the given index.
+     * 
+     * See {@link #Lexicon(IndexReader, String, int, List)} for details on pinned lexicons. The 
+     * statistics in the given file are ignored.
+     * 
+     * @param ir An {@link IndexReader}.
+     * @param field Index field name.
+     * @param minFreq Minimum term frequency used to produce the lexicon in the given file.
+     * @param file A file path.
+     * @return A new lexicon containing the terms in the given file, in the same order.
+     * @throws IOException 
+     */
+    public static Lexicon read( IndexReader ir, String field, int minFreq, Path file ) 
+    throws IOException {
+        List<BytesRef> terms = new ArrayList<>();
+        for( String term : DSVReader.readLongs( file ).rows ) {
+            terms.add( new BytesRef( term ) );
+        }
+        return new Lexicon( ir, field, minFreq, terms );
+    }
+    
+    /**
+     * Write a lexicon's terms and statistics to the given output.
+     * 
+     * Unlike {@link #write(Lexicon, Path)}, this preserves all data needed to reconstruct the 
+     * lexicon without reading statistics from the index. See 
+     * {@link #read(IndexReader, DataInput)}.
+     * 
+     * @param lxcn A lexicon.
+     * @param out  A {@link DataOutput}.
+     * @throws IOException 
+     */
+    public static void write( Lexicon lxcn, DataOutput out ) throws IOException {
+        out.writeString( lxcn.field );
+        out.writeVInt( lxcn.minFreq );
+        out.writeVInt( lxcn.size );
+        for( int i = 0; i < lxcn.size; i++ ) {
+            out.writeVInt( lxcn.offs[i + 1] - lxcn.offs[i] );
+            out.writeBytes( lxcn.pool, lxcn.offs[i], lxcn.offs[i + 1] - lxcn.offs[i] );
+            out.writeVLong( lxcn.tf[i] );
+            out.writeVLong( lxcn.df[i] );
         }
     }
     
+    /**
+     * Read a lexicon written by {@link #write(Lexicon, DataOutput)} from the given input.
+     * 
+     * Terms and their statistics are taken from the given input as they were when the lexicon 
+     * was written; the given index reader is only used for postings and total field frequency, 
+     * and should be over the same index commit as the one used to build the original lexicon.
+     * 
+     * @param ir An {@link IndexReader}.
+     * @param in A {@link DataInput}.
+     * @return A new lexicon equal to the one that was written to the given input.
+     * @throws IOException 
+     */
+    public static Lexicon read( IndexReader ir, DataInput in ) throws IOException {
+        String field = in.readString();
+        int minFreq = in.readVInt();
+        int n = in.readVInt();
+        Entries entries = new Entries( n );
+        BytesRef term = new BytesRef();
+        for( int i = 0; i < n; i++ ) {
+            term.length = in.readVInt();
+            term.bytes = ArrayUtil.grow( term.bytes, term.length );
+            in.readBytes( term.bytes, 0, term.length );
+            entries.add( term, in.readVLong(), in.readVLong() );
+        }
+        return new Lexicon( ir, field, minFreq, entries );
+    }
+    
     /**
      * Word objects associate each term with their corpus-wide statistics as compiled in a given 
      * lexicon at construction time.
+     * 
+     * Words are ordered by their index in the lexicon, i.e. in canonical order.
      */
     public class Word implements Comparable<Word> {
+        private final int index;
         private final BytesRef term;
         /** This word's term frequency **/
         public final long tf;
         /** This word's document frequncy **/
         public final long df;
 
-        Word( BytesRef term, long tf, long df ) {
-            this.term = BytesRef.deepCopyOf( term );
+        /* the given term is not copied, and must not be modified */
+        Word( int index, BytesRef term, long tf, long df ) {
+            this.index = index;
+            this.term = term;
             this.tf = tf;
             this.df = df;
         }
@@ -378,13 +698,13 @@ public class Lexicon implements Iterable<Word> {
          * @throws IOException 
          */
         public PostingsEnum postings( DocSet ds ) throws IOException {
-            return ds != null ? ds.filter( ir.postings( term() ) ) : ir.postings( term() );
+            PostingsEnum pEnum = MultiFields.getTermDocsEnum( ir, field, term );
+            return ds != null && pEnum != null ? ds.filter( pEnum ) : pEnum;
         }
         
         @Override
         public int compareTo( Word o ) {
-            int c = Long.compare( o.tf, this.tf );
-            return c != 0 ? c : this.term.compareTo( o.term );
+            return Integer.compare( this.index, o.index );
         }        
         
         @Override
@@ -393,6 +713,41 @@ public class Lexicon implements Iterable<Word> {
         }
     }
     
+    /* Terms and statistics in canonical order, prior to lexicon construction. Terms are copied 
+     * to a growing byte pool, in the same layout as a lexicon's */
+    private static class Entries {
+        private byte[] pool;
+        private int[] offs;
+        private long[] tf;
+        private long[] df;
+        private int size;
+        
+        private Entries( int capacity ) {
+            this.pool = new byte[ capacity * 8 ];
+            this.offs = new int[ capacity + 1 ];
+            this.tf = new long[ capacity ];
+            this.df = new long[ capacity ];
+        }
+        
+        private void add( BytesRef term, long tf, long df ) {
+            if( size == this.tf.length ) {
+                this.tf = ArrayUtil.grow( this.tf, size + 1 );
+                this.df = ArrayUtil.grow( this.df, size + 1 );
+                this.offs = ArrayUtil.grow( this.offs, size + 2 );
+            }
+            int off = offs[size];
+            this.pool = ArrayUtil.grow( pool, off + term.length );
+            System.arraycopy( term.bytes, term.offset, pool, off, term.length );
+            this.tf[size] = tf;
+            this.df[size] = df;
+            this.offs[++size] = off + term.length;
+        }
+        
+        private BytesRef term( int i ) {
+            return new BytesRef( pool, offs[i], offs[i + 1] - offs[i] );
+        }
+    }
+    
     /**
      * Simple struct to hold the representation of a lexicon as a set of three same-length arrays.
      * 
@@ -422,7 +777,7 @@ public class Lexicon implements Iterable<Word> {
         }
     }
     
-    private static class LxcnAccesor implements Accesor<SortedMap<Integer,Word>,Word,String,Long> {
+    private static class LxcnAccesor implements Accesor<Lexicon,Word,String,Long> {
 
         public static final String TF_KEY = "tf";
         public static final String DF_KEY = "df";
@@ -431,12 +786,14 @@ public class Lexicon implements Iterable<Word> {
         private final Map<String,Long> vals = new HashMap<>();
         
         @Override
-        public SortedSet<Word> rows( SortedMap<Integer,Word> data ) {
-            return new TreeSet<>( data.values() );
+        public SortedSet<Word> rows( Lexicon data ) {
+            SortedSet<Word> out = new TreeSet<>();
+            for( Word w : data ) out.add( w );
+            return out;
         }
 
         @Override
-        public SortedSet<String> cols( SortedMap<Integer,Word> data ) {
+        public SortedSet<String> cols( Lexicon data ) {
             cols.clear();
             cols.add( "tf" );
             cols.add( "df" );
@@ -444,7 +801,7 @@ public class Lexicon implements Iterable<Word> {
         }
 
         @Override
-        public Map<String,Long> values( SortedMap<Integer,Word> data, Word r ) {
+        public Map<String,Long> values( Lexicon data, Word r ) {
             vals.clear();
             vals.put( "tf", r.tf );
             vals.put( "df", r.df );
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.StringHelper;
+
+import edu.columbia.incite.util.DSVWriter;
+import edu.columbia.incite.util.FileUtils;
+
+/**
+ * Index segment coverage.
+ *
+ * Instances of this class record the set of index segments that were counted to produce some
+ * corpus dataset. Each segment is identified by its name, its unique id, its number of
+ * documents and its deletion generation; segments are immutable in Lucene, so a segment with the
+ * same identity always contains the same postings, and the same live documents.
+ *
+ * Comparing the segments recorded for a dataset against the segments in a newer version of the
+ * same index yields the segments that have been added since the dataset was produced, so that
+ * their counts can be merged into the existing data instead of counting the entire index again.
+ * This is only possible as long as all recorded segments are still present in the index: once
+ * covered segments have been merged away, their documents can no longer be told apart from new
+ * ones, and datasets must be produced from scratch.
+ *
+ * The same applies to deletions: counts for documents deleted from a covered segment can't be
+ * subtracted from existing datasets, so a covered segment whose deletion generation has changed is
+ * not considered present. This includes updated documents, which Lucene deletes from their old
+ * segment and adds to a new one; counting only the new segment would count them twice.
+ *
+ * Segment coverage is serialized in DSV format with one row per segment. See {@link DSVWriter}.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class Segments {
+
+    /** Default field name for segment names in segment files **/
+    public static final String SEG_ID = "_segment_";
+    /** Default field name for segment ids in segment files **/
+    public static final String ID_KEY = "id";
+    /** Default field name for segment sizes in segment files **/
+    public static final String DOCS_KEY = "docs";
+    /** Default field name for segment deletion generations in segment files **/
+    public static final String DEL_KEY = "delgen";
+
+    private final Map<String,Segment> segs;
+
+    private Segments( Map<String,Segment> segs ) {
+        this.segs = segs;
+    }
+
+    /**
+     * Record all segments in the given index.
+     *
+     * @param ir An {@link IndexReader} over segments of a Lucene index.
+     * @return A new Segments instance covering all segments in the given index.
+     * @throws IllegalArgumentException if any of the given reader's leaves is not a segment.
+     */
+    public static Segments of( IndexReader ir ) {
+        Map<String,Segment> segs = new LinkedHashMap<>();
+        for( LeafReaderContext ctx : ir.leaves() ) {
+            Segment seg = segment( ctx );
+            segs.put( seg.name, seg );
+        }
+        return new Segments( segs );
+    }
+
+    /**
+     * Number of segments recorded in this instance.
+     * @return The number of covered segments.
+     */
+    public int size() {
+        return this.segs.size();
+    }
+
+    /**
+     * Recorded segments.
+     * @return An unmodifiable collection with all segments recorded in this instance.
+     */
+    public Collection<Segment> segments() {
+        return Collections.unmodifiableCollection( this.segs.values() );
+    }
+
+    /**
+     * {@code true} if all segments recorded in this instance are present in the given index.
+     *
+     * Recorded segments are only present if their deletions have not changed since they were 
+     * recorded, see {@link Segment#delGen}.
+     *
+     * @param ir An {@link IndexReader} over segments of a Lucene index.
+     * @return {@code true} iff all recorded segments can be found, unchanged, in the given index.
+     */
+    public boolean present( IndexReader ir ) {
+        int found = 0;
+        for( LeafReaderContext ctx : ir.leaves() ) {
+            Segment seg = segment( ctx );
+            if( seg.equals( segs.get( seg.name ) ) ) found++;
+        }
+        return found == segs.size();
+    }
+
+    /**
+     * Segments in the given index that are not recorded in this instance.
+     *
+     * @param ir An {@link IndexReader} over segments of a Lucene index.
+     * @return A list with the contexts for all leaves in the given reader that correspond to
+     *         segments not covered by this instance, in index order.
+     * @throws IllegalStateException if recorded segments are no longer present in the index. See
+     *                               {@link #present(IndexReader)}.
+     */
+    public List<LeafReaderContext> delta( IndexReader ir ) {
+        if( !present( ir ) ) {
+            throw new IllegalStateException( "Covered segments are no longer present in index" );
+        }
+        List<LeafReaderContext> out = new ArrayList<>();
+        for( LeafReaderContext ctx : ir.leaves() ) {
+            if( !segs.containsKey( segment( ctx ).name ) ) out.add( ctx );
+        }
+        return out;
+    }
+
+    private static Segment segment( LeafReaderContext ctx ) {
+        LeafReader lr = FilterLeafReader.unwrap( ctx.reader() );
+        if( !( lr instanceof SegmentReader ) ) {
+            throw new IllegalArgumentException( String.format(
+                "Reader %s is not a segment reader", lr.toString()
+            ) );
+        }
+        SegmentCommitInfo sci = ( (SegmentReader) lr ).getSegmentInfo();
+        SegmentInfo si = sci.info;
+        return new Segment( 
+            si.name, StringHelper.idToString( si.getId() ), si.maxDoc(), sci.getDelGen() 
+        );
+    }
+
+    /**
+     * Write segment coverage data to disk in DSV format.
+     *
+     * Segments are serialized in four columns, containing the segment name, the segment's unique 
+     * id, its number of documents and its deletion generation.
+     *
+     * @param segs A Segments instance.
+     * @param file A file path.
+     * @throws IOException
+     */
+    public static void write( Segments segs, Path file ) throws IOException {
+        String sep = DSVWriter.COL_SEP;
+        try( Writer w = FileUtils.getWriter( file ) ) {
+            w.append( String.join( sep, SEG_ID, ID_KEY, DOCS_KEY, DEL_KEY ) );
+            w.append( DSVWriter.ROW_SEP );
+            for( Segment seg : segs.segs.values() ) {
+                w.append( String.join( sep, 
+                    seg.name, seg.id, Integer.toString( seg.docs ), Long.toString( seg.delGen ) 
+                ) );
+                w.append( DSVWriter.ROW_SEP );
+            }
+        }
+    }
+
+    /**
+     * Read segment coverage data from a file written by {@link #write(Segments, Path)}.
+     *
+     * All rows must contain the four columns described in {@link #write(Segments, Path)}.
+     *
+     * @param file A file path.
+     * @return A new Segments instance with all segments recorded in the given file.
+     * @throws IOException
+     */
+    public static Segments read( Path file ) throws IOException {
+        Map<String,Segment> segs = new LinkedHashMap<>();
+        try( BufferedReader r = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+            String line = r.readLine(); // header
+            while( ( line = r.readLine() ) != null ) {
+                if( line.isEmpty() ) continue;
+                String[] fields = line.split( Pattern.quote( DSVWriter.COL_SEP ) );
+                if( fields.length != 4 ) {
+                    throw new IOException( String.format( "%s: malformed row: %s", file, line ) );
+                }
+                Segment seg = new Segment( 
+                    fields[0], fields[1], Integer.parseInt( fields[2] ), Long.parseLong( fields[3] )
+                );
+                segs.put( seg.name, seg );
+            }
+        }
+        return new Segments( segs );
+    }
+
+    /**
+     * Identity of an index segment.
+     */
+    public static class Segment {
+        /** Segment name **/
+        public final String name;
+        /** Segment unique id **/
+        public final String id;
+        /** Number of documents in this segment, including deleted documents **/
+        public final int docs;
+        /** Generation of this segment's deletions, -1 if it has none. Changes on every deletion **/
+        public final long delGen;
+
+        Segment( String name, String id, int docs, long delGen ) {
+            this.name = name;
+            this.id = id;
+            this.docs = docs;
+            this.delGen = delGen;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if( !( o instanceof Segment ) ) return false;
+            Segment s = (Segment) o;
+            return name.equals( s.name ) && id.equals( s.id ) && docs == s.docs 
+                && delGen == s.delGen;
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + id.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return String.format( "%s(%s):%d/%d", name, id, docs, delGen );
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus.work;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import edu.columbia.incite.run.Logs;
+import edu.columbia.incite.util.DSVWriter;
+import edu.columbia.incite.util.FileUtils;
+import edu.columbia.incite.util.SparseMatrix;
+
+/**
+ * Persistent progress of a long-running co-occurrence count.
+ *
+ * A checkpoint records the set of work units, e.g. document ranges, that have been counted so
+ * far, and one sorted triplet file per commit with the counts for the units in it, in the format
+ * produced by {@link SparseMatrix#save(SparseMatrix, Path)}. Units are identified by arbitrary
+ * strings, and the whole checkpoint by a job key that should capture all parameters that affect
+ * the counts and the definition of units, so that a checkpoint is only resumed by an identical
+ * job.
+ *
+ * Counts are added with {@link #commit(CoocWorker, int, Collection)}, which writes all counts
+ * held by a worker to a new run and then replaces the checkpoint's manifest. The manifest is
+ * replaced with an atomic move, and it is the only reference to the runs, so a process that is
+ * killed at any point leaves either the previous or the new checkpoint, and never counts a unit
+ * twice. Workers must be quiescent while their counts are committed.
+ *
+ * Runs are not combined while committing, so each commit writes only its own counts and
+ * checkpoints cost I/O proportional to the counts taken; consumers merge all runs once, e.g. with
+ * {@link edu.columbia.incite.util.Triplets#merge(java.util.List, Path)}. The number of runs grows
+ * with the number of commits, so commits should be large enough to keep it in the hundreds.
+ *
+ * Manifests are serialized in DSV format, with one row for the job key, one for each run and one
+ * for each unit. See {@link DSVWriter}.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class Checkpoint {
+
+    /** Manifest file name **/
+    public static final String MANIFEST = "checkpoint.dsv";
+
+    private static final String KEY  = "key";
+    private static final String RUN  = "run";
+    private static final String UNIT = "unit";
+
+    private final Path dir;
+    private final String key;
+    private final Set<String> done = new LinkedHashSet<>();
+    private final List<Path> runs = new ArrayList<>();
+
+    private Checkpoint( Path dir, String key ) {
+        this.dir = dir;
+        this.key = key;
+    }
+
+    /**
+     * Open a checkpoint in the given directory for the job with the given key.
+     *
+     * If resuming, the checkpoint recorded in the directory, if any, is loaded if it was written
+     * for the same job key. Otherwise, or if not resuming, any recorded checkpoint is discarded.
+     * Runs that are not referenced by the loaded manifest are deleted.
+     *
+     * @param dir    A directory for checkpoint files. Will be created if it does not exist.
+     * @param key    A job key.
+     * @param resume If {@code true}, load the recorded checkpoint for the same job.
+     * @return A Checkpoint instance.
+     *
+     * @throws IOException
+     */
+    public static Checkpoint open( Path dir, String key, boolean resume ) throws IOException {
+        Files.createDirectories( dir );
+        Checkpoint ckpt = new Checkpoint( dir, key );
+        Path file = dir.resolve( MANIFEST );
+        if( resume && Files.exists( file ) ) {
+            ckpt.read( file );
+        }
+        for( Path p : FileUtils.listPaths( dir, "cooc-*" ) ) {
+            if( !ckpt.runs.contains( p ) ) Files.delete( p );
+        }
+        if( ckpt.runs.isEmpty() ) {
+            Files.deleteIfExists( file );
+        } else {
+            Logs.infof( "Resuming from checkpoint in %s with %d units in %d runs", 
+                dir, ckpt.done.size(), ckpt.runs.size() 
+            );
+        }
+        return ckpt;
+    }
+
+    /**
+     * Whether the given unit has been committed.
+     * @param unit A unit id.
+     * @return {@code true} if counts for the given unit are included in this checkpoint's runs.
+     */
+    public boolean done( String unit ) {
+        return done.contains( unit );
+    }
+
+    /**
+     * Number of committed units.
+     * @return The number of units counted in this checkpoint's runs.
+     */
+    public int size() {
+        return done.size();
+    }
+
+    /**
+     * Sorted triplet files with the counts for all committed units, one per commit.
+     * @return An unmodifiable list of {@link Path}s, empty if no counts have been committed.
+     */
+    public List<Path> runs() {
+        return Collections.unmodifiableList( runs );
+    }
+
+    /**
+     * Add the counts held by the given worker to this checkpoint, recording the given units as
+     * done.
+     *
+     * All counts are taken from the worker and written to a new run with
+     * {@link CoocWorker#write(Path, int, Path...)}, which leaves it empty, so the worker should
+     * have counted exactly the given units since the last commit, and no tasks should be running.
+     *
+     * @param wrkr    A CoocWorker.
+     * @param threads Number of threads for merging per-thread matrices.
+     * @param units   Ids of the units counted by the given worker since the last commit.
+     *
+     * @throws IOException
+     */
+    public void commit( CoocWorker wrkr, int threads, Collection<String> units )
+    throws IOException {
+        Path next = Files.createTempFile( dir, "cooc-", ".bin" );
+        long n = wrkr.write( next, threads );
+        Path tmp = Files.createTempFile( dir, "checkpoint-", ".tmp" );
+        try {
+            write( tmp, next, units );
+            Files.move( tmp, dir.resolve( MANIFEST ),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING
+            );
+        } catch( IOException ex ) {
+            Files.deleteIfExists( next );
+            throw ex;
+        } finally {
+            Files.deleteIfExists( tmp );
+        }
+        runs.add( next );
+        done.addAll( units );
+        Logs.infof( "Checkpoint: %d units in %d runs, %d new entries in %s", 
+            done.size(), runs.size(), n, dir 
+        );
+    }
+
+    /**
+     * Delete this checkpoint's files, once its runs have been used.
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        Files.deleteIfExists( dir.resolve( MANIFEST ) );
+        for( Path run : runs ) {
+            Files.delete( run );
+        }
+        runs.clear();
+        done.clear();
+    }
+
+    private void write( Path file, Path next, Collection<String> units ) throws IOException {
+        String sep = DSVWriter.COL_SEP;
+        try( Writer w = FileUtils.getWriter( file ) ) {
+            w.append( String.join( sep, KEY, key ) ).append( DSVWriter.ROW_SEP );
+            for( Path run : runs ) {
+                w.append( String.join( sep, RUN, run.getFileName().toString() ) );
+                w.append( DSVWriter.ROW_SEP );
+            }
+            w.append( String.join( sep, RUN, next.getFileName().toString() ) );
+            w.append( DSVWriter.ROW_SEP );
+            for( String unit : done ) {
+                w.append( String.join( sep, UNIT, unit ) ).append( DSVWriter.ROW_SEP );
+            }
+            for( String unit : units ) {
+                w.append( String.join( sep, UNIT, unit ) ).append( DSVWriter.ROW_SEP );
+            }
+        }
+    }
+
+    private void read( Path file ) throws IOException {
+        Set<String> units = new LinkedHashSet<>();
+        String k = null;
+        List<Path> data = new ArrayList<>();
+        try( BufferedReader r = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+            String line;
+            while( ( line = r.readLine() ) != null ) {
+                if( line.isEmpty() ) continue;
+                String[] fields = line.split( Pattern.quote( DSVWriter.COL_SEP ), 2 );
+                if( fields.length != 2 ) {
+                    throw new IOException( String.format( "%s: malformed row: %s", file, line ) );
+                }
+                switch( fields[0] ) {
+                    case KEY:  k = fields[1]; break;
+                    case RUN:  data.add( dir.resolve( fields[1] ) ); break;
+                    case UNIT: units.add( fields[1] ); break;
+                    default: throw new IOException(
+                        String.format( "%s: malformed row: %s", file, line )
+                    );
+                }
+            }
+        }
+        if( !key.equals( k ) ) {
+            Logs.warnf( "Checkpoint in %s was written for a different job. Starting over", dir );
+            return;
+        }
+        for( Path run : data ) {
+            if( !Files.exists( run ) ) {
+                throw new IOException(
+                    String.format( "%s: missing checkpoint run %s", file, run )
+                );
+            }
+        }
+        this.runs.addAll( data );
+        this.done.addAll( units );
+    }
+}
@@ -16,25 +16,49 @@
  */
 package edu.columbia.incite.corpus.work;
 
+import edu.columbia.incite.util.ConcurrentSparseMatrix;
+import edu.columbia.incite.util.DSVWriter;
+import edu.columbia.incite.util.FileUtils;
 import edu.columbia.incite.util.SparseMatrix;
+import edu.columbia.incite.util.Triplets;
+import edu.columbia.incite.corpus.DocMap;
+import edu.columbia.incite.corpus.DocSet;
 import edu.columbia.incite.corpus.Lexicon;
 
 import com.google.common.base.Stopwatch;
-
-import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntIntHashMap;
+import com.google.common.collect.BiMap;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.TermState;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.Counter;
 
 import edu.columbia.incite.run.Logs;
 import edu.columbia.incite.run.Status;
@@ -49,6 +73,57 @@ import edu.columbia.incite.run.Progress;
  * {@link SparseMatrix} with cooc values for the terms in the lexicon found in the sampled 
  * documents.
  * 
+ * Each document's lexicon terms are laid out in a per-thread position buffer, indexed by token 
+ * position and holding {@link #NONE} at positions occupied by filtered terms, which is then 
+ * traversed with a window of fixed width around each position. Buffers are reused across 
+ * documents and only grow, so no per-document data structures are allocated.
+ * 
+ * Position buffers are filled from term vectors if the lexicon's field stores them. Otherwise, 
+ * documents are processed in blocks of at most {@link #BLOCK_SIZE} positions (or a single longer 
+ * document), filled by inverting the positional postings of all lexicon terms over each block's 
+ * document range. The lexicon's terms are enumerated once per task, measuring the length of 
+ * every document in its range, and each block only reads the postings of the terms that occur 
+ * in it. As every task sweeps the segment's term dictionary, segments without term vectors 
+ * should be split in a few large tasks; see {@link #chunk(LeafReaderContext, int, int)}. Both 
+ * sources produce identical counts, so term vectors are not required.
+ * 
+ * By default, counts from all threads are accumulated in a single 
+ * {@link ConcurrentSparseMatrix}: each thread collects updates in a private matrix that is added 
+ * to the shared one after every {@link #FLUSH_SIZE} updates, so memory use does not grow with the 
+ * number of threads. Alternatively, each thread can keep a full private matrix, and all of them 
+ * are merged in {@link #data()}; this avoids synchronization, at the cost of one matrix per thread.
+ * 
+ * With equal window widths, counts are symmetric. In symmetric mode, the window only looks ahead 
+ * of each position and every pair of positions is counted once, into the upper triangle of 
+ * symmetric matrices (see {@link SparseMatrix}), which halves both the work and the memory 
+ * used for counts, while producing the same results.
+ * 
+ * The shared matrix can be given a memory budget with {@link #spill(long, Path)}. Whenever its 
+ * estimated size crosses the budget, its contents are written to disk as a sorted triplet run and 
+ * it is emptied. {@link #write(Path, int, Path...)} combines all runs with an external k-way merge 
+ * into a single triplet file, so the size of the final matrix is bounded by disk space instead of 
+ * heap space. Peak memory use is about twice the budget, plus {@link #FLUSH_SIZE} updates per 
+ * thread, as counting continues while a run is written.
+ * 
+ * Alternatively, rows in the shared matrix can be bounded with {@link #top(int)}, to keep only 
+ * each term's k heaviest collocates while counting. Memory use is then proportional to the size 
+ * of the lexicon times k instead of the number of distinct pairs; see 
+ * {@link ConcurrentSparseMatrix} for the accuracy of bounded counts.
+ * 
+ * Given a {@link DocMap} of split values with {@link #split(DocMap)}, a separate co-occurrence 
+ * matrix is counted for each split value in the same traversal of the corpus. Split matrices are 
+ * stacked along the diagonal of a single block-diagonal matrix, in which the rows and columns of 
+ * split s are offset by s times the size of the lexicon; all of the above applies to it 
+ * unchanged. Documents without a split value are counted in one more block after all splits, so 
+ * that the sum of all blocks equals the counts for all documents. Blocks are recovered with 
+ * {@link SparseMatrix#blocks(int)} or written to separate files with 
+ * {@link #writeSplits(Path, int, Path...)}.
+ * 
+ * Finally, counts can be restricted to a block of rows with {@link #rows(int, int)}, to build a 
+ * matrix in several passes over the corpus, one per block of rows. Each pass needs only the memory 
+ * for its block, and since blocks are disjoint their results can be written out in order as they 
+ * are produced.
+ * 
  * It is thread-safe, in that the {@link Runnable} tasks it produces can be executed in parallel.
  * 
  * @author José Tomás Atria <jtatria@gmail.com>
@@ -58,16 +133,43 @@ public class CoocWorker {
     /** String used in progress reports. **/
     public static final String NAME = "Counting co-occurrences";
     
+    /** Sentinel value for buffer positions without a lexicon term **/
+    public static final int NONE = Lexicon.NONE;
+    /** Approximate number of positions per block when inverting postings **/
+    public static final int BLOCK_SIZE = 1 << 21;
+    /** Number of updates collected by each thread before adding them to a shared matrix **/
+    public static final int FLUSH_SIZE = 1 << 20;
+    /** Estimated heap size in bytes of each entry in a sparse matrix **/
+    public static final int ENTRY_BYTES = 32;
+    /** File name for counts from documents without a split value. See {@link #writeSplits} **/
+    public static final String UNSPLIT = "unsplit.dat";
+    /** Manifest file name for split files. See {@link #writeSplits} **/
+    public static final String MANIFEST = "splits.dsv";
+    
     // data objects
     private final ThreadLocal<SparseMatrix> tlMatrix = ThreadLocal.withInitial( () -> initData() );
+    private final ThreadLocal<Buffer> tlBuffer = ThreadLocal.withInitial( () -> initBuffer() );
+    private final ThreadLocal<Block>  tlBlock  = ThreadLocal.withInitial( () -> new Block() );
+    private final ThreadLocal<Range>  tlRange  = ThreadLocal.withInitial( () -> new Range() );
     private final List<SparseMatrix> matrices = new ArrayList<>();
+    private ConcurrentSparseMatrix shared;
+    private final List<Path> runs = new ArrayList<>();
     
     // parameters
     private final int wPre;
     private final int wPos;
+    private final boolean symm;
+    private Weighting wght;
+    private int topk;
+    private DocMap<String> splits;
+    private int[] cols;
+    private int rowLo;
+    private int rowHi;
+    private long budget;
+    private Path spillDir;
     
     // helper objects
-    private final LeafReader indx;
+    private final IndexReader indx;
     private final Lexicon    lxcn;
     private final Status   prog;
     
@@ -76,11 +178,11 @@ public class CoocWorker {
      * co-occurrences in a window with the given pre and pos widths.
      * 
      * @param lxcn A corpus' {@link Lexicon}.
-     * @param ir    An (atomic) index reader.
+     * @param ir    An index reader.
      * @param pre   The size of the window before each context word.
      * @param pos   The size of the window after each context word.
      */
-    public CoocWorker( Lexicon lxcn, LeafReader ir, int pre, int pos ) {
+    public CoocWorker( Lexicon lxcn, IndexReader ir, int pre, int pos ) {
         this( lxcn, ir, pre, pos, null );
     }
     
@@ -90,25 +192,198 @@ public class CoocWorker {
      * in the given out.
      * 
      * @param lxcn A corpus' {@link Lexicon}.
-     * @param ir    An (atomic) index reader.
+     * @param ir    An index reader.
      * @param pre   The size of the window before each context word.
      * @param pos   The size of the window after each context word.
      * @param out   A {@link Progress} object to report work.
      */
-    public CoocWorker( Lexicon lxcn, LeafReader ir, int pre, int pos, Progress out ) {
+    public CoocWorker( Lexicon lxcn, IndexReader ir, int pre, int pos, Progress out ) {
+        this( lxcn, ir, pre, pos, true, out );
+    }
+    
+    /**
+     * Create a new worker for the given lexicon using data from the given index to count 
+     * co-occurrences in a window with the given pre and pos widths, accumulating counts in a 
+     * shared matrix or in one matrix per thread, and report progress status in the given out.
+     * 
+     * @param lxcn   A corpus' {@link Lexicon}.
+     * @param ir     An index reader.
+     * @param pre    The size of the window before each context word.
+     * @param pos    The size of the window after each context word.
+     * @param shared If {@code true}, accumulate counts from all threads in a single matrix.
+     * @param out    A {@link Progress} object to report work.
+     */
+    public CoocWorker( 
+        Lexicon lxcn, IndexReader ir, int pre, int pos, boolean shared, Progress out 
+    ) {
+        this( lxcn, ir, pre, pos, shared, false, out );
+    }
+    
+    /**
+     * Create a new worker for the given lexicon using data from the given index to count 
+     * co-occurrences in a window with the given pre and pos widths, accumulating counts in a 
+     * shared matrix or in one matrix per thread, storing full or symmetric matrices, and report 
+     * progress status in the given out.
+     * 
+     * @param lxcn   A corpus' {@link Lexicon}.
+     * @param ir     An index reader.
+     * @param pre    The size of the window before each context word.
+     * @param pos    The size of the window after each context word.
+     * @param shared If {@code true}, accumulate counts from all threads in a single matrix.
+     * @param symm   If {@code true}, count each pair of positions once into symmetric matrices.
+     * @param out    A {@link Progress} object to report work.
+     * 
+     * @throws IllegalArgumentException if symm is set and pre and pos are different.
+     */
+    public CoocWorker( 
+        Lexicon lxcn, IndexReader ir, int pre, int pos, boolean shared, boolean symm, Progress out 
+    ) {
+        if( symm && pre != pos ) {
+            throw new IllegalArgumentException( String.format( 
+                "Symmetric counts require equal window widths, got [ %d, %d ]", pre, pos 
+            ) );
+        }
+        this.symm = symm;
         this.wPre = pre;
         this.wPos = pos;
+        this.wght = Weighting.of( Weighting.Scheme.HARMONIC, lxcn, pre, pos );
         this.indx = ir;
         this.lxcn = lxcn;
+        this.rowHi = lxcn.size;
+        this.shared = shared ? newShared() : null;
         this.prog = out == null ? Status.make( NAME ) : new Status( NAME, out );
     }
 
+    /**
+     * Set the positional weights used by this worker. Defaults to harmonic weights without term 
+     * weights, i.e. each pair of positions counts the inverse of their distance.
+     * 
+     * @param w A {@link Weighting} for this worker's lexicon and window.
+     * @return This worker.
+     * 
+     * @throws IllegalArgumentException if the given weighting was computed for a different 
+     * window width or lexicon size.
+     */
+    public CoocWorker weights( Weighting w ) {
+        if( w.width() != Math.max( wPre, wPos ) || w.terms() != lxcn.size ) {
+            throw new IllegalArgumentException( String.format( 
+                "Weighting for width %d and %d terms does not match window [ %d, %d ] and %d terms",
+                w.width(), w.terms(), wPre, wPos, lxcn.size
+            ) );
+        }
+        this.wght = w;
+        return this;
+    }
+
+    /**
+     * Bound the memory used by this worker's shared matrix.
+     * 
+     * When the estimated size of the shared matrix crosses the given budget, its contents are 
+     * written as a sorted triplet run to a new file in the given directory, and it is emptied. 
+     * Runs are deleted after their data is collected by {@link #data(int)} or 
+     * {@link #write(Path, int, Path...)}; only the latter keeps memory use bounded.
+     * 
+     * @param bytes Memory budget in bytes. Zero or negative values disable spilling.
+     * @param dir   A directory for spilled runs. Will be created if it does not exist.
+     * @return This worker.
+     * 
+     * @throws IllegalStateException if this worker does not accumulate counts in a shared matrix.
+     */
+    public CoocWorker spill( long bytes, Path dir ) {
+        if( shared == null ) {
+            throw new IllegalStateException( "Spilling requires a shared cooc matrix" );
+        }
+        if( topk > 0 ) {
+            throw new IllegalStateException( "Bounded cooc rows can't be spilled" );
+        }
+        this.budget = bytes;
+        this.spillDir = dir;
+        return this;
+    }
+
+    /**
+     * Keep only the k largest counts in each row of this worker's results.
+     * 
+     * Rows in the shared matrix keep 2k Space-Saving counters each (see 
+     * {@link ConcurrentSparseMatrix}), and the results produced by {@link #data(int)} and 
+     * {@link #write(Path, int, Path...)} are pruned to k entries per row, before they are combined 
+     * with any additional inputs. Must be called before any work is executed.
+     * 
+     * @param k Number of entries per row. Zero or negative values keep all entries.
+     * @return This worker.
+     * 
+     * @throws IllegalStateException if this worker does not accumulate counts in a shared, full 
+     * matrix, or if it spills counts to disk.
+     */
+    public CoocWorker top( int k ) {
+        if( shared == null || symm ) {
+            throw new IllegalStateException( "Bounded rows require a shared full cooc matrix" );
+        }
+        if( budget > 0 ) {
+            throw new IllegalStateException( "Bounded cooc rows can't be spilled" );
+        }
+        this.topk = k;
+        this.shared = newShared();
+        return this;
+    }
+
+    /**
+     * Count only pairs with a context term index between lo (inclusive) and hi (exclusive), i.e. 
+     * only the given block of rows of the full cooccurrence matrix. Terms outside of the block are 
+     * still counted as collocates of terms in it. Must be called before any work is executed.
+     * 
+     * @param lo First row index.
+     * @param hi Row index one past the last row in the block.
+     * @return This worker.
+     * 
+     * @throws IllegalStateException if this worker counts symmetric matrices, as the rows of their 
+     * full equivalents are not stored separately.
+     */
+    public CoocWorker rows( int lo, int hi ) {
+        if( symm ) {
+            throw new IllegalStateException( "Can't count row blocks of symmetric matrices" );
+        }
+        this.rowLo = lo;
+        this.rowHi = hi;
+        return this;
+    }
+
+    /**
+     * Count a separate matrix for each split value in the given map.
+     * 
+     * Documents are assigned to splits by their output keys in the given map (see 
+     * {@link DocMap#columns()}), and counts for split s are stored in block s of this worker's 
+     * results, with row and column indices offset by {@code s * lxcn.size}. Documents without a 
+     * split value are counted in block {@code splits.numOutputs()}. Must be called before any work 
+     * is executed.
+     * 
+     * @param splits A finished {@link DocMap}.
+     * @return This worker.
+     * 
+     * @throws IOException if the given map can't be read.
+     * @throws IllegalArgumentException if the stacked matrix would have more than 
+     * {@link Integer#MAX_VALUE} rows.
+     */
+    public CoocWorker split( DocMap<String> splits ) throws IOException {
+        if( ( splits.numOutputs() + 1L ) * lxcn.size > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( String.format( 
+                "Can't stack %d splits of %d terms", splits.numOutputs(), lxcn.size
+            ) );
+        }
+        this.splits = splits;
+        this.cols = splits.columns();
+        if( shared != null ) this.shared = newShared();
+        return this;
+    }
+
     /**
      * Produce a runnable task for this worker.
      * 
      * The returned task will collect cooc counts from the given document when executed, updating 
      * counts in this worker's data.
      * 
+     * NB: Requires term vectors. See {@link #work(LeafReaderContext, DocSet, int, int)}.
+     * 
      * @param doc A document number
      * @return A {@link Runnable} object with the work corresponding to the given document.
      */
@@ -116,57 +391,215 @@ public class CoocWorker {
         prog.add();
         return () -> {
             try {
-                Terms tv = indx.getTermVector( doc, lxcn.field() );
-                if( tv != null ) {
-                    TIntIntMap wrk = new TIntIntHashMap();
-                    PostingsEnum p = null;
-                    int max = 0;
-                    TermsEnum tEnum = lxcn.filter( tv );
-                    // Collect position info for each term
-                    while( tEnum.next() != null ) {
-                        p = tEnum.postings( p, PostingsEnum.POSITIONS );
-                        while( p.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
-                            int f = p.freq();
-                            for( int i = 0; i < f; i++ ) {
-                                int pos = p.nextPosition();
-                                max = pos > max ? pos : max; // record max position
-                                wrk.put( pos, lxcn.getIndex( tEnum.term() ) );
-                            }
-                        }
-                    }
-                    
-                    // Naive implementation.
-                    for( int i = 0; i <= max; i++ ) {
-                        if( !wrk.containsKey( i ) ) continue;
-                        int lo = ( i - wPre < 0 ) ? 0 : i - wPre;
-                        int hi = ( i + wPos > max ) ? max : i + wPos;
-                        for( int j = lo; j <= hi; j++ ) {
-                            if( i == j ) continue;
-                            if( !wrk.containsKey( j ) ) continue; // j was a filtered term.
-                            addDelta( wrk.get( i ), i, wrk.get( j ), j );
-                        }
-                    }
-                    
-                }
+                count( indx.getTermVector( doc, lxcn.field() ), doc );
             } catch( IOException ex ) {
-                Logger.getLogger( "" ).log( Level.SEVERE, null, ex );
+                throw new UncheckedIOException( ex );
             }
             prog.update();
         };
     }
-
-    private void addDelta( int pre_i, int pre_p, int pos_i, int pos_p ) {
-        // double delta = lxcn.weight( pre_i, pre_p, pos_i, pos_p ); // TODO
-        double delta = 1d / Math.abs( pre_p - pos_p );
-        update( pre_i, pos_i, delta );
+    
+    /**
+     * Produce a runnable task for a range of documents in one segment of an index.
+     * 
+     * The returned task will collect cooc counts from all documents in the given DocSet with 
+     * segment-local document numbers between {@code from} (inclusive) and {@code to} (exclusive), 
+     * reading term vectors directly from the segment's reader, or inverting its positional 
+     * postings if the segment has no term vectors for the lexicon's field.
+     * 
+     * @param ctx  A segment's {@link LeafReaderContext}.
+     * @param ds   A DocSet with index-wide document numbers. May be {@code null} to process all 
+     *             documents in the range.
+     * @param from First segment-local document number.
+     * @param to   Segment-local document number one past the last document in the range.
+     * @return A {@link Runnable} object with the work corresponding to the given range.
+     */
+    public Runnable work(
+        final LeafReaderContext ctx, final DocSet ds, final int from, final int to
+    ) {
+        final int base = ctx.docBase;
+        final BitSet bs = ds != null ? ds.bits() : null;
+        final int total = bs != null ? count( bs, base + from, base + to ) : to - from;
+        prog.add( total );
+        return () -> {
+            try {
+                if( !hasVectors( ctx, lxcn.field() ) ) {
+                    invert( ctx, bs, from, to );
+                    return;
+                }
+                LeafReader lr = ctx.reader();
+                for( int d = next( bs, base, from, to ); d < to; d = next( bs, base, d + 1, to ) ) {
+                    count( lr.getTermVector( d, lxcn.field() ), base + d );
+                    prog.update();
+                }
+            } catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+        };
+    }
+    
+    /**
+     * Number of documents per task for the given segment.
+     * 
+     * Segments with term vectors for the lexicon's field are split in tasks of the given size. 
+     * Otherwise, each task enumerates the segment's lexicon terms and opens their postings before 
+     * inverting its documents, so the segment is split in at most the given number of tasks, 
+     * none of them smaller than the given size.
+     * 
+     * @param ctx   A segment's {@link LeafReaderContext}.
+     * @param chunk Number of documents per task for segments with term vectors.
+     * @param tasks Maximum number of tasks for segments without term vectors, e.g. the number 
+     *              of threads.
+     * @return The number of documents per task for the given segment.
+     */
+    public int chunk( LeafReaderContext ctx, int chunk, int tasks ) {
+        if( hasVectors( ctx, lxcn.field() ) ) return chunk;
+        int max = ctx.reader().maxDoc();
+        return Math.max( chunk, ( max + tasks - 1 ) / Math.max( 1, tasks ) );
+    }
+    
+    private static int next( BitSet bs, int base, int from, int to ) {
+        if( bs == null || from >= to ) return from;
+        if( base + from >= bs.length() ) return to;
+        int nsb = bs.nextSetBit( base + from );
+        return nsb == DocIdSetIterator.NO_MORE_DOCS ? to : Math.min( nsb - base, to );
+    }
+    
+    private static int count( BitSet bs, int from, int to ) {
+        int ct = 0;
+        for( int d = next( bs, 0, from, to ); d < to; d = next( bs, 0, d + 1, to ) ) {
+            ct++;
+        }
+        return ct;
+    }
+    
+    private void count( Terms tv, int doc ) throws IOException {
+        if( tv == null ) return;
+        Buffer buf = tlBuffer.get();
+        buf.fill( tv );
+        count( buf, offset( doc ) );
+    }
+    
+    /* offset of the given document's block in a stacked matrix. Documents without a split value 
+     * go to the block after the last split */
+    private int offset( int doc ) {
+        if( cols == null ) return 0;
+        int s = doc < cols.length ? cols[doc] : -1;
+        return ( s < 0 ? splits.numOutputs() : s ) * lxcn.size;
+    }
+    
+    /* walk the window over the given buffer's positions, adding counts at the given offset */
+    private void count( Buffer buf, int off ) throws IOException {
+        int max = buf.max;
+        int[] tks = buf.tks;
+        int rlo = rowLo;
+        int rhi = rowHi;
+        double[] dist = wght.dist;
+        double[] term = wght.term;
+        SparseMatrix m = tlMatrix.get();
+        int n = 0;
+        for( int i = 0; i <= max; i++ ) {
+            int ti = tks[i];
+            if( ti == NONE || ti < rlo || ti >= rhi ) continue;
+            double wi = term[ti];
+            int lo = symm ? i + 1 : ( i - wPre < 0 ? 0 : i - wPre );
+            int hi = i + wPos > max ? max : i + wPos;
+            for( int j = lo; j <= hi; j++ ) {
+                int tj = tks[j];
+                if( j == i || tj == NONE ) continue; // j was a filtered term.
+                double delta = dist[ j > i ? j - i : i - j ] * wi * term[tj];
+                // a pair of positions with the same term counts twice on the diagonal.
+                m.update( off + ti, off + tj, symm && ti == tj ? 2 * delta : delta );
+                n++;
+            }
+        }
+        buf.clear();
+        if( shared != null && ( buf.pending += n ) >= FLUSH_SIZE ) {
+            shared.merge( m );
+            buf.pending = 0;
+            if( budget > 0 && shared.size() * ENTRY_BYTES > budget ) spill();
+        }
+    }
+    
+    /* write the shared matrix to a new run if it is over budget; one thread spills at a time */
+    private void spill() throws IOException {
+        synchronized( runs ) {
+            if( shared.size() * ENTRY_BYTES <= budget ) return; // another thread spilled.
+            SparseMatrix m = shared.drain();
+            Path run = newRun( spillDir );
+            SparseMatrix.save( m, run );
+            runs.add( run );
+            Logs.infof( "%s: spilled %d entries to %s", NAME, m.size(), run );
+        }
+    }
+    
+    private ConcurrentSparseMatrix newShared() {
+        int nrows = lxcn.size * ( splits != null ? splits.numOutputs() + 1 : 1 );
+        return new ConcurrentSparseMatrix( nrows, ConcurrentSparseMatrix.STRIPES, symm, topk );
+    }
+    
+    private static Path newRun( Path dir ) throws IOException {
+        Files.createDirectories( dir );
+        return Files.createTempFile( dir, "cooc-", ".run" );
+    }
+    
+    /* count all documents in the given range by inverting the segment's positional postings. 
+     * Lexicon terms are enumerated once for the whole range, recording the number of lexicon 
+     * positions in each document, and blocks are cut from those lengths. Each block then reads 
+     * only the postings of terms with documents in it, resuming from the first document past the 
+     * last block that contained them. */
+    private void invert( LeafReaderContext ctx, BitSet bs, int from, int to ) throws IOException {
+        Terms terms = ctx.reader().terms( lxcn.field() );
+        int base = ctx.docBase;
+        if( terms == null ) {
+            prog.update( bs != null ? count( bs, base + from, base + to ) : to - from );
+            return;
+        }
+        Buffer buf = tlBuffer.get();
+        Block blk = tlBlock.get();
+        Range rng = tlRange.get();
+        rng.load( lxcn.filter( terms ), buf, bs, base, from, to );
+        TermsEnum tEnum = terms.iterator();
+        for( int lo = from, hi; lo < to; lo = hi ) {
+            hi = rng.block( lo, to );
+            blk.reset();
+            for( int t = 0; t < rng.n; t++ ) {
+                if( rng.next[t] >= hi ) continue;
+                tEnum.seekExact( rng.term( t ), rng.state[t] );
+                buf.pEnum = tEnum.postings( buf.pEnum, PostingsEnum.POSITIONS );
+                PostingsEnum pEnum = buf.pEnum;
+                int d = pEnum.advance( rng.next[t] );
+                for( ; d < hi; d = pEnum.nextDoc() ) {
+                    if( bs != null && !bs.get( base + d ) ) continue;
+                    int f = pEnum.freq();
+                    for( int i = 0; i < f; i++ ) {
+                        blk.add( d - lo, pEnum.nextPosition(), rng.idx[t] );
+                    }
+                }
+                rng.next[t] = d;
+            }
+            blk.sort( hi - lo );
+            for( int d = next( bs, base, lo, hi ); d < hi; d = next( bs, base, d + 1, hi ) ) {
+                for( int e = blk.start[ d - lo ]; e < blk.start[ d - lo + 1 ]; e++ ) {
+                    buf.put( blk.sPos[e], blk.sIdx[e] );
+                }
+                count( buf, offset( base + d ) );
+                prog.update();
+            }
+        }
+    }
+    
+    private static boolean hasVectors( LeafReaderContext ctx, String field ) {
+        FieldInfo fi = ctx.reader().getFieldInfos().fieldInfo( field );
+        return fi != null && fi.hasVectors();
     }
 
-    private void update( int i, int j, double d ) {
-        tlMatrix.get().update( i, j, d );
+    private Buffer initBuffer() {
+        return new Buffer( lxcn );
     }
 
     private SparseMatrix initData() {
-        SparseMatrix m = new SparseMatrix();
+        SparseMatrix m = new SparseMatrix( symm );
         synchronized( matrices ) {
             matrices.add( m );
         }
@@ -183,27 +616,218 @@ public class CoocWorker {
      * executed, as this method will reap all internal data storages and merge them into one data 
      * set. Updates during this process may corrupt data or get lost.
      * 
+     * If counts are accumulated in a shared matrix, pending updates from all threads are added 
+     * to it and its contents are transferred to the returned matrix; otherwise, all per-thread 
+     * matrices are merged into one. Runs spilled to disk are loaded and added to the result, so 
+     * this method is not memory-bounded; see {@link #write(Path, int, Path...)}.
+     * 
      * After this method returns, additional work can be submitted and executed, but the results 
      * of these will be accumulated from scratch.
      * 
      * @return A {@link SparseMatrix} with cooc counts from all documents processed so far.
      */
     public SparseMatrix data() {
-        Logs.infof( "%s: merging %d partial datasets", NAME, matrices.size() );
-        Stopwatch sw = Stopwatch.createUnstarted();
-        int i = 0;
-        SparseMatrix out = matrices.get( i++ );
-        sw.start();
-        for( ; i < matrices.size(); i++ ) {
-            SparseMatrix m = matrices.get( i );
-            out.merge( m );
-            matrices.set( i, null );
-        }
-        matrices.clear();
-        sw.stop();
-        Logs.infof( "%s: datasets merged in %d seconds", NAME, sw.elapsed( TimeUnit.SECONDS ) );
+        return data( 1 );
+    }
+    
+    /**
+     * Get this worker's results, merging per-thread data with the given number of threads.
+     * 
+     * See {@link #data()} and {@link SparseMatrix#merge(List, int)} for details.
+     * 
+     * @param threads Number of threads for merging per-thread matrices. Ignored if counts are 
+     *                accumulated in a shared matrix.
+     * @return A {@link SparseMatrix} with cooc counts from all documents processed so far.
+     */
+    public SparseMatrix data( int threads ) {
+        synchronized( runs ) {
+            SparseMatrix out = collect( threads );
+            try {
+                for( Path run : runs ) {
+                    out.merge( SparseMatrix.load( run, symm ) );
+                    Files.delete( run );
+                }
+            } catch( IOException ex ) {
+                Logger.getLogger( CoocWorker.class.getName() ).log( Level.SEVERE, null, ex );
+            }
+            runs.clear();
+            return out;
+        }
+    }
+    
+    /**
+     * Write this worker's results to the given file as sorted triplets, in the format produced by 
+     * {@link SparseMatrix#save(SparseMatrix, Path)}, optionally adding data from other triplet 
+     * files.
+     * 
+     * If no runs have been spilled and no other inputs are given, in-memory counts are written 
+     * directly. Otherwise, they are written as one more run, and all runs and inputs are combined 
+     * with {@link Triplets#merge(List, Path)}, without loading them in memory. The given file may 
+     * be one of the inputs, as it is only replaced after the merge is complete.
+     * 
+     * As with {@link #data()}, this should only be called after all tasks have been executed. 
+     * Spilled runs are deleted afterwards.
+     * 
+     * @param file    Output path.
+     * @param threads Number of threads for merging per-thread matrices.
+     * @param inputs  Additional sorted triplet files, e.g. previously saved counts.
+     * @return The number of entries written.
+     * 
+     * @throws IOException 
+     */
+    public long write( Path file, int threads, Path... inputs ) throws IOException {
+        synchronized( runs ) {
+            SparseMatrix rest = collect( threads );
+            if( runs.isEmpty() && inputs.length == 0 ) {
+                SparseMatrix.save( rest, file );
+                return rest.size();
+            }
+            Path dir = file.toAbsolutePath().getParent();
+            if( rest.size() > 0 ) {
+                Path run = newRun( spillDir != null ? spillDir : dir );
+                SparseMatrix.save( rest, run );
+                runs.add( run );
+            }
+            List<Path> all = new ArrayList<>( runs );
+            all.addAll( Arrays.asList( inputs ) );
+            Logs.infof( "%s: merging %d sorted runs into %s", NAME, all.size(), file );
+            Stopwatch sw = Stopwatch.createStarted();
+            Path tmp = Files.createTempFile( dir, "cooc-", ".tmp" );
+            try {
+                long n = Triplets.merge( all, tmp );
+                Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING );
+                sw.stop();
+                Logs.infof( "%s: %d entries merged in %d seconds", 
+                    NAME, n, sw.elapsed( TimeUnit.SECONDS ) 
+                );
+                return n;
+            } finally {
+                Files.deleteIfExists( tmp );
+                for( Path run : runs ) {
+                    Files.deleteIfExists( run );
+                }
+                runs.clear();
+            }
+        }
+    }
+    
+    /**
+     * Write this worker's results to one triplet file per split value in the given directory, 
+     * in the format produced by {@link SparseMatrix#save(SparseMatrix, Path)}, optionally adding 
+     * data from other stacked triplet files.
+     * 
+     * Results and inputs are written with {@link #write(Path, int, Path...)} to a temporary file, 
+     * which is then split into blocks with {@link Triplets#split(Path, int, Path[])}. Files are 
+     * named after their split values with {@link #fileName(String)}, and listed in a 
+     * {@link #MANIFEST} in the same directory (see {@link #writeManifest(Path, Map)}); splits 
+     * without counts produce empty files. Counts for documents without a split value are written 
+     * to {@link #UNSPLIT} in the same directory, which is not listed in the manifest.
+     * 
+     * @param dir     Output directory. Will be created if it does not exist.
+     * @param threads Number of threads for merging per-thread matrices.
+     * @param inputs  Additional sorted triplet files with stacked split matrices, e.g. previously 
+     *                written by {@link #write(Path, int, Path...)} from a worker with the same 
+     *                splits.
+     * @return A map from split values to the files written for each of them, in output key order.
+     * 
+     * @throws IOException 
+     * @throws IllegalStateException if this worker does not count separate splits.
+     */
+    public Map<String,Path> writeSplits( Path dir, int threads, Path... inputs ) 
+    throws IOException {
+        if( splits == null ) {
+            throw new IllegalStateException( "Worker does not count separate splits" );
+        }
+        Files.createDirectories( dir );
+        BiMap<Long,String> labels = splits.outputMap();
+        Map<String,Path> out = new LinkedHashMap<>();
+        Path[] files = new Path[ splits.numOutputs() + 1 ];
+        for( int s = 0; s < splits.numOutputs(); s++ ) {
+            String label = labels.get( (long) s );
+            files[s] = dir.resolve( fileName( label ) );
+            out.put( label, files[s] );
+        }
+        files[ splits.numOutputs() ] = dir.resolve( UNSPLIT );
+        Path tmp = Files.createTempFile( dir, "cooc-", ".tmp" );
+        try {
+            write( tmp, threads, inputs );
+            Triplets.split( tmp, lxcn.size, files );
+        } finally {
+            Files.deleteIfExists( tmp );
+        }
+        writeManifest( dir, out );
         return out;
     }
+    
+    /**
+     * File name for the given split value.
+     * 
+     * Bytes in the value's UTF8 encoding other than ASCII letters, digits, dots, dashes and 
+     * underscores are replaced by a percent sign followed by their hex value, so distinct values 
+     * always produce distinct names, and names are stable as split values are added.
+     * 
+     * @param label A split value.
+     * @return A file name ending in {@code .bin}.
+     */
+    public static String fileName( String label ) {
+        StringBuilder sb = new StringBuilder();
+        for( byte b : label.getBytes( StandardCharsets.UTF_8 ) ) {
+            if( ( b >= 'a' && b <= 'z' ) || ( b >= 'A' && b <= 'Z' ) || ( b >= '0' && b <= '9' ) 
+                || b == '.' || b == '-' || b == '_' 
+            ) {
+                sb.append( (char) b );
+            } else {
+                sb.append( String.format( "%%%02X", b & 0xff ) );
+            }
+        }
+        return sb.append( ".bin" ).toString();
+    }
+    
+    /**
+     * Write a {@link #MANIFEST} listing the given split files to the given directory.
+     * 
+     * Manifests are serialized in DSV format, with one row per split containing the file's name 
+     * and its split value, in that order. See {@link DSVWriter}.
+     * 
+     * @param dir   A directory.
+     * @param files A map from split values to files in the given directory.
+     * 
+     * @throws IOException 
+     */
+    public static void writeManifest( Path dir, Map<String,Path> files ) throws IOException {
+        try( Writer w = FileUtils.getWriter( dir.resolve( MANIFEST ) ) ) {
+            for( Map.Entry<String,Path> e : files.entrySet() ) {
+                w.append( String.join( DSVWriter.COL_SEP, 
+                    e.getValue().getFileName().toString(), e.getKey() 
+                ) );
+                w.append( DSVWriter.ROW_SEP );
+            }
+        }
+    }
+    
+    /* reap all in-memory data */
+    private SparseMatrix collect( int threads ) {
+        synchronized( matrices ) {
+            if( shared != null ) {
+                for( SparseMatrix m : matrices ) {
+                    shared.merge( m );
+                }
+                SparseMatrix out = shared.drain();
+                if( topk > 0 ) out.top( topk );
+                return out;
+            }
+            if( matrices.isEmpty() ) return new SparseMatrix( symm );
+            Logs.infof( "%s: merging %d partial datasets with %d threads", 
+                NAME, matrices.size(), threads 
+            );
+            Stopwatch sw = Stopwatch.createStarted();
+            // per-thread matrices are left empty, and remain in use by their threads.
+            SparseMatrix out = SparseMatrix.merge( matrices, threads );
+            sw.stop();
+            Logs.infof( "%s: datasets merged in %d seconds", NAME, sw.elapsed( TimeUnit.SECONDS ) );
+            return out;
+        }
+    }
 
     public void report() {
         this.prog.report();
@@ -213,4 +837,169 @@ public class CoocWorker {
         return this.prog.status();
     }
     
+    /* Per-thread position buffer */
+    private static final class Buffer {
+        private final Lexicon.Cursor cursor;
+        private int[] tks = new int[0];
+        private int max = NONE;
+        private long pending;
+        private PostingsEnum pEnum;
+        
+        private Buffer( Lexicon lxcn ) {
+            this.cursor = lxcn.cursor();
+        }
+        
+        /* lay out the lexicon terms in the given term vector by position */
+        private void fill( Terms tv ) throws IOException {
+            TermsEnum tEnum = tv.iterator();
+            cursor.reset();
+            BytesRef term;
+            while( ( term = tEnum.next() ) != null ) {
+                int idx = cursor.index( term );
+                if( idx == NONE ) continue;
+                pEnum = tEnum.postings( pEnum, PostingsEnum.POSITIONS );
+                while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+                    int f = pEnum.freq();
+                    for( int i = 0; i < f; i++ ) {
+                        put( pEnum.nextPosition(), idx );
+                    }
+                }
+            }
+        }
+        
+        private void put( int pos, int idx ) {
+            if( pos >= tks.length ) grow( pos + 1 );
+            max = pos > max ? pos : max; // record max position
+            tks[pos] = idx;
+        }
+        
+        private void grow( int min ) {
+            int len = tks.length;
+            tks = Arrays.copyOf( tks, ArrayUtil.oversize( min, Integer.BYTES ) );
+            Arrays.fill( tks, len, tks.length, NONE );
+        }
+        
+        /* reset all positions up to max, inclusive */
+        private void clear() {
+            Arrays.fill( tks, 0, max + 1, NONE );
+            max = NONE;
+        }
+    }
+    
+    /* Per-thread block of inverted postings, as (doc,pos,idx) entries grouped by document */
+    private static final class Block {
+        private int[] doc  = new int[0];
+        private int[] pos  = new int[0];
+        private int[] idx  = new int[0];
+        private int[] sPos = new int[0];
+        private int[] sIdx = new int[0];
+        private int[] start = new int[1];
+        private int[] fill  = new int[0];
+        private int n;
+        
+        private void reset() {
+            this.n = 0;
+        }
+        
+        private void add( int d, int p, int i ) {
+            if( n == doc.length ) {
+                int len = ArrayUtil.oversize( n + 1, Integer.BYTES );
+                doc = Arrays.copyOf( doc, len );
+                pos = Arrays.copyOf( pos, len );
+                idx = Arrays.copyOf( idx, len );
+            }
+            doc[n] = d;
+            pos[n] = p;
+            idx[n] = i;
+            n++;
+        }
+        
+        /* stable counting sort by document, preserving term order within each document */
+        private void sort( int docs ) {
+            if( start.length < docs + 1 ) {
+                start = new int[ ArrayUtil.oversize( docs + 1, Integer.BYTES ) ];
+                fill  = new int[ start.length ];
+            }
+            if( sPos.length < n ) {
+                sPos = new int[ doc.length ];
+                sIdx = new int[ doc.length ];
+            }
+            Arrays.fill( start, 0, docs + 1, 0 );
+            for( int e = 0; e < n; e++ ) {
+                start[ doc[e] + 1 ]++;
+            }
+            for( int d = 0; d < docs; d++ ) {
+                start[ d + 1 ] += start[d];
+            }
+            System.arraycopy( start, 0, fill, 0, docs );
+            for( int e = 0; e < n; e++ ) {
+                int k = fill[ doc[e] ]++;
+                sPos[k] = pos[e];
+                sIdx[k] = idx[e];
+            }
+        }
+    }
+    
+    /* Per-thread table of the lexicon terms with postings in a segment's document range, holding 
+     * each term's state and the first document in the range that has not been inverted yet, and 
+     * the number of lexicon positions in each counted document of the range */
+    private static final class Range {
+        private final BytesRefArray terms = new BytesRefArray( Counter.newCounter() );
+        private final BytesRefBuilder spare = new BytesRefBuilder();
+        private TermState[] state = new TermState[0];
+        private int[] idx  = new int[0];
+        private int[] next = new int[0];
+        private int[] len  = new int[0];
+        private int from;
+        private int n;
+        
+        /* collect all terms in the given enum with documents between from and to, adding their 
+         * frequencies in the documents in the given set, if any, to the documents' lengths */
+        private void load( TermsEnum tEnum, Buffer buf, BitSet bs, int base, int from, int to ) 
+        throws IOException {
+            this.n = 0;
+            this.from = from;
+            if( len.length < to - from ) {
+                len = new int[ ArrayUtil.oversize( to - from, Integer.BYTES ) ];
+            }
+            Arrays.fill( len, 0, to - from, 0 );
+            terms.clear();
+            buf.cursor.reset();
+            while( tEnum.next() != null ) {
+                buf.pEnum = tEnum.postings( buf.pEnum, PostingsEnum.FREQS );
+                PostingsEnum pEnum = buf.pEnum;
+                int d = pEnum.advance( from );
+                if( d >= to ) continue;
+                for( int e = d; e < to; e = pEnum.nextDoc() ) {
+                    if( bs == null || bs.get( base + e ) ) len[ e - from ] += pEnum.freq();
+                }
+                if( n == idx.length ) {
+                    int size = ArrayUtil.oversize( n + 1, Integer.BYTES );
+                    state = Arrays.copyOf( state, size );
+                    idx   = Arrays.copyOf( idx, size );
+                    next  = Arrays.copyOf( next, size );
+                }
+                state[n] = tEnum.termState();
+                idx[n] = buf.cursor.index( tEnum.term() );
+                next[n] = d;
+                terms.append( tEnum.term() );
+                n++;
+            }
+        }
+        
+        private BytesRef term( int t ) {
+            return terms.get( spare, t );
+        }
+        
+        /* end of the block starting at lo: as many documents as fit in BLOCK_SIZE positions, and 
+         * at least one, so that a single long document makes a block of its own */
+        private int block( int lo, int to ) {
+            int hi = lo + 1;
+            long sum = len[ lo - from ];
+            while( hi < to && sum + len[ hi - from ] <= BLOCK_SIZE ) {
+                sum += len[ hi++ - from ];
+            }
+            return hi;
+        }
+    }
 }
@@ -18,15 +18,13 @@ package edu.columbia.incite.corpus.work;
 
 import edu.columbia.incite.corpus.Lexicon;
 import edu.columbia.incite.corpus.DocMap;
-import edu.columbia.incite.run.Status;
 import edu.columbia.incite.util.FileUtils;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import com.google.common.collect.BiMap;
@@ -34,17 +32,31 @@ import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.util.BytesRef;
 
 import edu.columbia.incite.run.Progress;
+import edu.columbia.incite.util.DSVReader;
 import edu.columbia.incite.util.DSVWriter;
+import edu.columbia.incite.util.LongMatrix;
 
 /**
- *
+ * Term frequencies
+ * 
+ * This worker counts term frequencies for the terms in a {@link Lexicon}, optionally split by the 
+ * values associated to each document in a {@link DocMap}. It is a {@link PostingsCollector}, so 
+ * it can be fed by a shared {@link ScanWorker} together with other collectors.
+ * 
+ * Counts are stored in a {@link LongMatrix} with one row per lexicon term and one column per 
+ * split value. Its representation is chosen from an upper bound on the number of non-zero cells 
+ * given by each term's document frequency: splits with many values (e.g. dates) produce mostly 
+ * empty rows for all but the most common terms, and are stored sparsely.
+ * 
+ * When counting by split, documents without a value in the given {@link DocMap} are not counted.
+ * 
  * @author José Tomás Atria <jtatria@gmail.com>
  */
- public class FreqWorker {
+ public class FreqWorker implements PostingsCollector {
 
      public static final String NAME = "Counting frequencies";
     // data objects
-    private final long[][] data;
+    private final LongMatrix data;
 
     // parameters
     public static final String NO_SPLIT_KEY = "total";
@@ -52,7 +64,8 @@ import edu.columbia.incite.util.DSVWriter;
     // helper objects
     private final Lexicon lxcn;
     private final DocMap<String> splits;
-    private final Status prog;
+    private final int[] cols;
+    private final ScanWorker scan;
     
     public FreqWorker( Lexicon lxcn ) throws IOException {
         this( lxcn, null );
@@ -65,51 +78,122 @@ import edu.columbia.incite.util.DSVWriter;
     public FreqWorker( Lexicon lxcn, DocMap<String> splits, Progress out ) {
         this.lxcn = lxcn;
         this.splits = splits;
-        this.data = new long[ lxcn.size ][ splits == null ? 1 : splits.numOutputs() ];
-        this.prog = out == null ? Status.make( NAME ) : new Status( NAME, out );
+        int ncols = splits == null ? 1 : splits.numOutputs();
+        this.data = LongMatrix.make( lxcn.size, ncols, density( lxcn, ncols ) );
+        this.cols = splits == null ? null : columns( splits );
+        this.scan = new ScanWorker( lxcn, NAME, out, this );
     }
 
+    @Override
     public int flags() {
         return PostingsEnum.FREQS;
     }
     
     public Runnable work( final BytesRef term, final PostingsEnum pEnum ) {
-        prog.add();
-        return () -> {
-            try {
-                int row = lxcn.getIndex( term );
-                while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
-                    long freq = pEnum.freq();
-                    int doc = pEnum.docID();
-                    int col = (int) ( splits != null ? splits.outputKey( splits.get( doc ) ) : 0l );
-                    data[row][col] += freq;
-                }
-                prog.update();
-            } catch( IOException ex ) {
-                Logger.getLogger(FreqWorker.class.getName() ).log( Level.SEVERE, null, ex );
-            }
-        };
+        return scan.work( term, pEnum );
+    }
+
+    @Override
+    public void doc( int row, int doc, int freq ) {
+        if( cols == null ) {
+            data.add( row, 0, freq );
+            return;
+        }
+        int c = doc < cols.length ? cols[doc] : -1;
+        if( c < 0 ) return;
+        data.add( row, c, freq );
+    }
+    
+    /**
+     * Estimated density of a frequency matrix for the given lexicon and number of columns.
+     * 
+     * A term can not have non-zero counts in more columns than the number of documents it occurs 
+     * in, so the sum of {@code min( df, cols )} over all terms bounds the number of non-zero 
+     * cells from above.
+     * 
+     * @param lxcn A {@link Lexicon}.
+     * @param cols Number of columns, i.e. split values.
+     * @return The maximum proportion of non-zero cells in a frequency matrix.
+     */
+    public static double density( Lexicon lxcn, int cols ) {
+        if( lxcn.size == 0 ) return 1d;
+        double nz = 0;
+        for( int i = 0; i < lxcn.size; i++ ) {
+            nz += Math.min( lxcn.getWord( i ).df, cols );
+        }
+        return nz / ( (double) lxcn.size * cols );
+    }
+    
+    private static int[] columns( DocMap<String> splits ) {
+        try {
+            return splits.columns();
+        } catch( IOException ex ) {
+            throw new UncheckedIOException( ex );
+        }
     }
     
     public void report() {
-        this.prog.report();
+        this.scan.report();
     }
     
     public long[] status() {
-        return this.prog.status();
+        return this.scan.status();
     }
     
-    public long[][] data() {
+    public LongMatrix data() {
         return this.data;
     }
 
-    public static void write( Lexicon lxcn, long[][] data, DocMap<String> splits, Path file ) 
+    /**
+     * Write frequency counts to the given file in DSV format.
+     * 
+     * The file contains one row per lexicon term and one column per split value in the given 
+     * splits. Rows are extracted from the given matrix one at a time, so sparse matrices are 
+     * written without being materialized in full.
+     * 
+     * @param lxcn   The {@link Lexicon} used to produce the given data.
+     * @param data   A frequency matrix, as produced by {@link #data()}.
+     * @param splits The {@link DocMap} used to produce the given data.
+     * @param file   A file path.
+     * @throws IOException 
+     */
+    public static void write( Lexicon lxcn, LongMatrix data, DocMap<String> splits, Path file ) 
     throws IOException {
         List<String> rows = Arrays.asList( lxcn.terms() );
+        List<String> cols = labels( splits );
+        DSVWriter.write( FileUtils.getWriter( file ), data, rows, cols, Lexicon.TERM_ID );
+    }
+    
+    /**
+     * Read frequency counts from a file written by 
+     * {@link #write(Lexicon, LongMatrix, DocMap, Path)}.
+     * 
+     * The file's rows must correspond to the given lexicon's terms, in canonical order. Columns 
+     * are matched to the given splits' outputs by value, so the given splits may contain values 
+     * that were not present when the file was written.
+     * 
+     * The file is read one row at a time into a matrix with the same representation as a 
+     * worker's data for the given lexicon and splits (see {@link #density(Lexicon, int)}), so 
+     * sparse frequencies stay sparse.
+     * 
+     * @param lxcn   The {@link Lexicon} used to produce the given file.
+     * @param splits A {@link DocMap} with all values found in the given file.
+     * @param file   A file path.
+     * @return A {@link LongMatrix} with the same dimensions as this worker's data.
+     * @throws IOException 
+     */
+    public static LongMatrix read( Lexicon lxcn, DocMap<String> splits, Path file ) 
+    throws IOException {
+        List<String> rows = Arrays.asList( lxcn.terms() );
+        List<String> cols = labels( splits );
+        LongMatrix out = LongMatrix.make( lxcn.size, cols.size(), density( lxcn, cols.size() ) );
+        return DSVReader.readLongs( file, rows, cols, out );
+    }
+    
+    private static List<String> labels( DocMap<String> splits ) {
         BiMap<Long,String> map = splits.outputMap();
-        List<String> cols = map.keySet().stream().sorted().map(
+        return map.keySet().stream().sorted().map(
             ( l ) -> map.get( l )
         ).collect( Collectors.toList() );
-        DSVWriter.write( FileUtils.getWriter( file ), data, rows, cols, Lexicon.TERM_ID );
     }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus.work;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+
+import edu.columbia.incite.corpus.DocMap;
+import edu.columbia.incite.run.Logs;
+import edu.columbia.incite.run.Progress;
+import edu.columbia.incite.run.Status;
+
+/**
+ * Document maps
+ *
+ * This worker builds a {@link DocMap} associating each document in an index to the value of a
+ * single-valued string field. Values are read from the field's {@link SortedDocValues} when the
+ * field has doc values in a given segment, and from stored fields otherwise.
+ *
+ * Documents are processed in ranges of document numbers within each segment; the tasks produced
+ * by this worker fill disjoint regions of a shared key table and can be executed in parallel.
+ * The resulting map is assembled sequentially by {@link #data()}, as {@link DocMap} requires
+ * sorted insertion.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class MapWorker {
+
+    /** String used in progress reports. **/
+    public static final String NAME = "Mapping documents";
+
+    // data objects
+    private final int[] data;
+
+    // parameters
+    private final String field;
+    private final List<String> values;
+    private final Map<String,Integer> keys = new HashMap<>();
+    private final Set<String> fields;
+
+    // helper objects
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong stored  = new AtomicLong();
+    private final Status prog;
+
+    /**
+     * Create a new worker to map the documents in the given index to the values of the given
+     * field.
+     *
+     * @param ir    An index reader.
+     * @param field A field name.
+     * @throws IOException
+     */
+    public MapWorker( IndexReader ir, String field ) throws IOException {
+        this( ir, field, null );
+    }
+
+    /**
+     * Create a new worker to map the documents in the given index to the values of the given
+     * field, and report progress status in the given out.
+     *
+     * @param ir    An index reader.
+     * @param field A field name.
+     * @param out   A {@link Progress} object to report work.
+     * @throws IOException
+     */
+    public MapWorker( IndexReader ir, String field, Progress out ) throws IOException {
+        this.field  = field;
+        this.fields = Collections.singleton( field );
+        this.data   = new int[ ir.maxDoc() ];
+        Arrays.fill( this.data, -1 );
+        this.values = new ArrayList<>( values( ir, field ) );
+        for( int i = 0; i < values.size(); i++ ) {
+            keys.put( values.get( i ), i );
+        }
+        this.prog = out == null ? Status.make( NAME ) : new Status( NAME, out );
+    }
+
+    /**
+     * Number of distinct values in the mapped field.
+     * @return The number of outputs in the resulting {@link DocMap}.
+     */
+    public int numOutputs() {
+        return this.values.size();
+    }
+
+    /**
+     * Produce a runnable task for this worker.
+     *
+     * The returned task will read values for all documents between the segment-local document
+     * numbers {@code from} (inclusive) and {@code to} (exclusive) in the given segment.
+     *
+     * @param ctx  A segment's {@link LeafReaderContext}.
+     * @param from First segment-local document number.
+     * @param to   Segment-local document number one past the last document in the range.
+     * @return A {@link Runnable} object with the work corresponding to the given range.
+     */
+    public Runnable work( final LeafReaderContext ctx, final int from, final int to ) {
+        prog.add( to - from );
+        return () -> {
+            try {
+                LeafReader lr = ctx.reader();
+                int base = ctx.docBase;
+                SortedDocValues sdv = lr.getSortedDocValues( field );
+                if( sdv != null ) {
+                    int[] ords = new int[ sdv.getValueCount() ];
+                    for( int o = 0; o < ords.length; o++ ) {
+                        ords[o] = key( sdv.lookupOrd( o ).utf8ToString() );
+                    }
+                    for( int d = from; d < to; d++ ) {
+                        int ord = sdv.getOrd( d );
+                        data[ base + d ] = ord < 0 ? -1 : ords[ord];
+                    }
+                } else {
+                    for( int d = from; d < to; d++ ) {
+                        Document doc = lr.document( d, fields );
+                        IndexableField f = doc.getField( field );
+                        data[ base + d ] = f == null ? -1 : key( f.stringValue() );
+                    }
+                    stored.addAndGet( to - from );
+                }
+                prog.update( to - from );
+            } catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+        };
+    }
+
+    private int key( String value ) {
+        Integer k = keys.get( value );
+        if( k == null ) {
+            missing.incrementAndGet();
+            return -1;
+        }
+        return k;
+    }
+
+    /**
+     * Get this worker's results.
+     *
+     * Assembles a finished {@link DocMap} from all documents processed so far. Documents with no
+     * value for the mapped field are not included in the map.
+     *
+     * It is not recommended to call this method until all tasks produced by this worker have been
+     * executed.
+     *
+     * @return A {@link DocMap} with bidirectional retrieval over the mapped field's values.
+     * @throws IOException
+     */
+    public DocMap<String> data() throws IOException {
+        if( stored.get() > 0 ) {
+            Logs.infof( "%s: %d documents read from stored fields", NAME, stored.get() );
+        }
+        if( missing.get() > 0 ) {
+            Logs.warnf( "%s: %d documents with unknown values in field %s",
+                NAME, missing.get(), field
+            );
+        }
+        DocMap<String> dm = new DocMap<>( new TreeSet<>( values ) );
+        for( int d = 0; d < data.length; d++ ) {
+            if( data[d] >= 0 ) dm.add( d, values.get( data[d] ) );
+        }
+        dm.finish();
+        return dm;
+    }
+
+    public void report() {
+        this.prog.report();
+    }
+
+    public long[] status() {
+        return this.prog.status();
+    }
+
+    private static SortedSet<String> values( IndexReader ir, String field ) throws IOException {
+        SortedSet<String> out = new TreeSet<>();
+        Terms terms = MultiFields.getTerms( ir, field );
+        if( terms != null ) {
+            TermsEnum tEnum = terms.iterator();
+            while( tEnum.next() != null ) {
+                out.add( tEnum.term().utf8ToString() );
+            }
+        }
+        // values only present as doc values.
+        for( LeafReaderContext ctx : ir.leaves() ) {
+            SortedDocValues sdv = ctx.reader().getSortedDocValues( field );
+            if( sdv == null ) continue;
+            for( int o = 0; o < sdv.getValueCount(); o++ ) {
+                out.add( sdv.lookupOrd( o ).utf8ToString() );
+            }
+        }
+        return out;
+    }
+}
@@ -25,22 +25,25 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import org.apache.lucene.index.PostingsEnum;
 import org.apache.lucene.util.BytesRef;
 
 import edu.columbia.incite.corpus.Lexicon;
-import edu.columbia.incite.run.Status;
 import edu.columbia.incite.run.Progress;
+import edu.columbia.incite.util.DSVReader;
 import edu.columbia.incite.util.DSVWriter;
 
 /**
- *
+ * POS tag counts
+ * 
+ * This worker counts the POS classes recorded in the payloads of each occurrence of the terms in 
+ * a {@link Lexicon}. It is a {@link PostingsCollector}, so it can be fed by a shared 
+ * {@link ScanWorker} together with other collectors.
+ * 
  * @author José Tomás Atria <jtatria@gmail.com>
  */
-public class POSCWorker {
+public class POSCWorker implements PostingsCollector {
     
     public static final String NAME = "Counting POS tags";
     // data objects
@@ -48,7 +51,7 @@ public class POSCWorker {
     
     // helper objects
     private final Lexicon lxcn;
-    private final Status prog;
+    private final ScanWorker scan;
     
     public POSCWorker( Lexicon lxcn ) {
         this( lxcn, null );
@@ -57,31 +60,21 @@ public class POSCWorker {
     public POSCWorker( Lexicon lxcn, Progress prog ) {
         this.data = new long[ lxcn.size() ][ POSClass.values().length ];
         this.lxcn = lxcn;
-        this.prog = prog == null ? Status.make( NAME ) : new Status( NAME, prog );
+        this.scan = new ScanWorker( lxcn, NAME, prog, this );
     }
     
+    @Override
     public int flags() {
         return PostingsEnum.ALL;
     }
     
     public Runnable work( final BytesRef term, final PostingsEnum pEnum ) {
-        prog.add();
-        return () -> {
-            try {
-                int row = lxcn.getIndex( term );
-                while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
-                    int freq = pEnum.freq();
-                    for( int i = 0; i < freq; i++ ) {
-                        pEnum.nextPosition();
-                        POSClass pos = POSClass.getPOSClass( pEnum.getPayload() ); 
-                        data[row][pos.ordinal()]++;
-                    }
-                }
-                prog.update();
-            } catch( IOException ex ) {
-                Logger.getLogger(POSCWorker.class.getName() ).log( Level.SEVERE, null, ex );
-            }
-        };
+        return scan.work( term, pEnum );
+    }
+
+    @Override
+    public void position( int row, int doc, int pos, BytesRef payload ) {
+        data[row][POSClass.getPOSClass( payload ).ordinal()]++;
     }
     
     public long[][] data() {
@@ -90,18 +83,37 @@ public class POSCWorker {
     
     public static void write( Lexicon lxcn, long[][] data, Path file ) throws IOException {
         List<String> rows = Arrays.asList( lxcn.terms() );
+        DSVWriter.write( FileUtils.getWriter( file ), data, rows, labels(), Lexicon.TERM_ID );
+    }
+    
+    /**
+     * Read POS counts from a file written by {@link #write(Lexicon, long[][], Path)}.
+     * 
+     * The file's rows must correspond to the given lexicon's terms, in canonical order.
+     * 
+     * @param lxcn The {@link Lexicon} used to produce the given file.
+     * @param file A file path.
+     * @return A {@code long[][]} array with the same dimensions as this worker's data.
+     * @throws IOException 
+     */
+    public static long[][] read( Lexicon lxcn, Path file ) throws IOException {
+        List<String> rows = Arrays.asList( lxcn.terms() );
+        return DSVReader.readLongs( file ).align( rows, labels() );
+    }
+    
+    private static List<String> labels() {
         List<String> cols = new ArrayList<>();
         for( POSClass pos : POSClass.values() ) {
             cols.add( pos.toString() );
         }
-        DSVWriter.write( FileUtils.getWriter( file ), data, rows, cols, Lexicon.TERM_ID );
+        return cols;
     }
     
     public void report() {
-        this.prog.report();
+        this.scan.report();
     }
     
     public long[] status() {
-        return this.prog.status();
+        return this.scan.status();
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus.work;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A consumer of term postings for the terms in a lexicon.
+ *
+ * Collectors are fed by a {@link ScanWorker}, which traverses each term's postings once and
+ * dispatches every posting (and, if requested, every position) to all registered collectors.
+ * This allows any number of statistics to be computed from a single pass over the index.
+ *
+ * Postings for a given term are always delivered by a single thread, but different terms may be
+ * delivered concurrently; implementations must be safe for concurrent calls with different rows.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public interface PostingsCollector {
+
+    /**
+     * {@link PostingsEnum} flags needed by this collector, e.g. {@link PostingsEnum#FREQS} or
+     * {@link PostingsEnum#ALL}.
+     *
+     * Position data will only be delivered to {@link #position(int, int, int, BytesRef)} if
+     * positions are requested.
+     *
+     * @return A postings flag value.
+     */
+    public int flags();
+
+    /**
+     * Collect a posting.
+     *
+     * @param row  The lexicon index of the current term.
+     * @param doc  A document number.
+     * @param freq The term's frequency in the given document.
+     */
+    public default void doc( int row, int doc, int freq ) {}
+
+    /**
+     * Collect a position.
+     *
+     * @param row     The lexicon index of the current term.
+     * @param doc     A document number.
+     * @param pos     A token position.
+     * @param payload The payload at the given position, may be {@code null}. Only valid during
+     *                this call.
+     */
+    public default void position( int row, int doc, int pos, BytesRef payload ) {}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus.work;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import edu.columbia.incite.corpus.DocSet;
+import edu.columbia.incite.corpus.Lexicon;
+import edu.columbia.incite.run.Progress;
+import edu.columbia.incite.run.Status;
+
+/**
+ * Postings scan.
+ *
+ * This worker traverses the postings of the terms in a {@link Lexicon} and feeds them to any
+ * number of {@link PostingsCollector}s, so that several corpus statistics (e.g. frequencies and
+ * POS counts) can be filled from one enumeration of the index.
+ *
+ * Postings are requested with the union of all collectors' flags. Positions and payloads are
+ * only decoded if at least one collector asks for them, and only delivered to those collectors
+ * that do.
+ *
+ * It is thread-safe, in that the {@link Runnable} tasks it produces can be executed in parallel.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class ScanWorker {
+
+    /** String used in progress reports. **/
+    public static final String NAME = "Scanning postings";
+
+    // parameters
+    private final PostingsCollector[] cols;
+    private final PostingsCollector[] posCols;
+    private final int flags;
+    private final boolean freqs;
+
+    // helper objects
+    private final Lexicon lxcn;
+    private final Status  prog;
+
+    /**
+     * Create a new scan over the given lexicon feeding the given collectors.
+     *
+     * @param lxcn A corpus' {@link Lexicon}.
+     * @param cols Any number of {@link PostingsCollector}s.
+     */
+    public ScanWorker( Lexicon lxcn, PostingsCollector... cols ) {
+        this( lxcn, NAME, null, cols );
+    }
+
+    /**
+     * Create a new scan over the given lexicon feeding the given collectors, reporting progress
+     * with the given name in the given output.
+     *
+     * @param lxcn A corpus' {@link Lexicon}.
+     * @param name A name for progress reports.
+     * @param out  A {@link Progress} object to report work.
+     * @param cols Any number of {@link PostingsCollector}s.
+     */
+    public ScanWorker( Lexicon lxcn, String name, Progress out, PostingsCollector... cols ) {
+        this.lxcn = lxcn;
+        this.cols = cols;
+        int f = PostingsEnum.NONE;
+        List<PostingsCollector> tmp = new ArrayList<>();
+        for( PostingsCollector c : cols ) {
+            f |= c.flags();
+            if( PostingsEnum.featureRequested( c.flags(), PostingsEnum.POSITIONS ) ) tmp.add( c );
+        }
+        this.flags   = f;
+        this.freqs   = PostingsEnum.featureRequested( f, PostingsEnum.FREQS );
+        this.posCols = tmp.toArray( new PostingsCollector[tmp.size()] );
+        this.prog    = out == null ? Status.make( name ) : new Status( name, out );
+    }
+
+    /**
+     * Postings flags required by this scan's collectors.
+     * @return A postings flag value.
+     */
+    public int flags() {
+        return this.flags;
+    }
+
+    /**
+     * Produce a runnable task for this worker.
+     *
+     * The returned task will feed all postings in the given enumeration to this scan's
+     * collectors.
+     *
+     * @param term  A term. Must be contained in this worker's lexicon.
+     * @param pEnum A {@link PostingsEnum} for the given term, opened with at least
+     *              {@link #flags()}.
+     * @return A {@link Runnable} with the work corresponding to the given term.
+     */
+    public Runnable work( final BytesRef term, final PostingsEnum pEnum ) {
+        prog.add();
+        return () -> {
+            try {
+                scan( lxcn.getIndex( term ), 0, pEnum );
+                prog.update();
+            } catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+        };
+    }
+
+    /**
+     * Produce a runnable task for a contiguous range of terms in this worker's lexicon.
+     * 
+     * The returned task will visit each segment of the given index directly, open its own 
+     * {@link TermsEnum} over it, seek each lexicon term between the sorted positions {@code from} 
+     * (inclusive) and {@code to} (exclusive) in order, and feed their postings to this scan's 
+     * collectors. See {@link Lexicon#sortedTerm(int)} for details on sorted positions.
+     * 
+     * Document numbers passed to collectors are rebased with each segment's docBase, so they are 
+     * valid across the whole index. All postings for a term are delivered by the same task.
+     * 
+     * One task per range, with a reused {@link PostingsEnum}, keeps the number of pending tasks 
+     * bounded by the number of ranges rather than the size of the lexicon.
+     * 
+     * @param ir    An index reader.
+     * @param ds    A DocSet to filter postings with. May be {@code null}.
+     * @param from  First sorted position in the range.
+     * @param to    Sorted position one past the last term in the range.
+     * @return A {@link Runnable} with the work corresponding to the given term range.
+     */
+    public Runnable work( final IndexReader ir, final DocSet ds, final int from, final int to ) {
+        return work( ir.leaves(), ds, from, to );
+    }
+    
+    /**
+     * Produce a runnable task for a contiguous range of terms in this worker's lexicon, restricted 
+     * to the given segments.
+     * 
+     * See {@link #work(IndexReader, DocSet, int, int)} for details.
+     * 
+     * @param leaves Contexts for any number of segments from the same index.
+     * @param ds     A DocSet to filter postings with. May be {@code null}.
+     * @param from   First sorted position in the range.
+     * @param to     Sorted position one past the last term in the range.
+     * @return A {@link Runnable} with the work corresponding to the given term range.
+     */
+    public Runnable work( 
+        final List<LeafReaderContext> leaves, final DocSet ds, final int from, final int to 
+    ) {
+        prog.add( to - from );
+        return () -> {
+            try {
+                PostingsEnum pEnum = null;
+                for( LeafReaderContext ctx : leaves ) {
+                    Terms terms = ctx.reader().terms( lxcn.field() );
+                    if( terms == null ) continue;
+                    TermsEnum tEnum = terms.iterator();
+                    for( int srt = from; srt < to; srt++ ) {
+                        if( !tEnum.seekExact( lxcn.sortedTerm( srt ) ) ) continue;
+                        pEnum = tEnum.postings( pEnum, flags );
+                        scan( lxcn.sortedIndex( srt ), ctx.docBase,
+                            ds != null ? ds.filter( pEnum, ctx ) : pEnum
+                        );
+                    }
+                }
+                prog.update( to - from );
+            } catch( IOException ex ) {
+                throw new UncheckedIOException( ex );
+            }
+        };
+    }
+
+    private void scan( int row, int base, PostingsEnum pEnum ) throws IOException {
+        while( pEnum.nextDoc() != PostingsEnum.NO_MORE_DOCS ) {
+            int doc  = base + pEnum.docID();
+            int freq = freqs ? pEnum.freq() : 1;
+            for( PostingsCollector c : cols ) {
+                c.doc( row, doc, freq );
+            }
+            if( posCols.length == 0 ) continue;
+            for( int i = 0; i < freq; i++ ) {
+                int pos = pEnum.nextPosition();
+                BytesRef payload = pEnum.getPayload();
+                for( PostingsCollector c : posCols ) {
+                    c.position( row, doc, pos, payload );
+                }
+            }
+        }
+    }
+
+    public void report() {
+        this.prog.report();
+    }
+
+    public long[] status() {
+        return this.prog.status();
+    }
+}
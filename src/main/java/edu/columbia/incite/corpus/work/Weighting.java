@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.corpus.work;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+
+import edu.columbia.incite.corpus.Lexicon;
+
+/**
+ * Positional weights for co-occurrence counts.
+ *
+ * The weight of a pair of tokens is the product of a distance weight, given by a {@link Scheme}
+ * as a function of the offset between their positions, and, optionally, a term weight for each
+ * of the two tokens' terms, equal to their smoothed inverse document frequency
+ * {@code log( 1 + N / df )}, where N is the number of documents with the lexicon's field.
+ *
+ * All weights are computed in advance: distance weights for every offset up to the window width
+ * and term weights for every term in the lexicon, so that workers can apply them with two array
+ * lookups per pair, without allocating or calling any methods. Term weights are all one if not
+ * requested. All weights are symmetric, so they can be used to count symmetric matrices.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public final class Weighting {
+
+    /** Distance weighting schemes **/
+    public enum Scheme {
+        /** Every pair in the window counts 1 **/
+        UNIFORM,
+        /** Pairs count the inverse of their distance: 1/d **/
+        HARMONIC,
+        /** Pairs count linearly less with distance: (w - d + 1)/w, for a window of width w **/
+        LINEAR;
+    }
+
+    /** Distance weights, indexed by offset. Entry 0 is unused **/
+    final double[] dist;
+    /** Term weights, indexed by lexicon index **/
+    final double[] term;
+
+    private final Scheme scheme;
+    private final boolean idf;
+
+    private Weighting( Scheme scheme, boolean idf, double[] dist, double[] term ) {
+        this.scheme = scheme;
+        this.idf = idf;
+        this.dist = dist;
+        this.term = term;
+    }
+
+    /**
+     * Create a new weighting for windows of the given widths, without term weights.
+     *
+     * @param scheme A distance weighting {@link Scheme}.
+     * @param lxcn   A {@link Lexicon}.
+     * @param pre    The size of the window before each context word.
+     * @param pos    The size of the window after each context word.
+     * @return A new Weighting.
+     */
+    public static Weighting of( Scheme scheme, Lexicon lxcn, int pre, int pos ) {
+        double[] term = new double[ lxcn.size ];
+        Arrays.fill( term, 1d );
+        return new Weighting( scheme, false, distances( scheme, Math.max( pre, pos ) ), term );
+    }
+
+    /**
+     * Create a new weighting for windows of the given widths.
+     *
+     * @param scheme A distance weighting {@link Scheme}.
+     * @param idf    If {@code true}, weight pairs by the inverse document frequencies of both
+     *               terms.
+     * @param lxcn   A {@link Lexicon}.
+     * @param ir     The index reader the lexicon was built from.
+     * @param pre    The size of the window before each context word.
+     * @param pos    The size of the window after each context word.
+     * @return A new Weighting.
+     *
+     * @throws IOException
+     */
+    public static Weighting of(
+        Scheme scheme, boolean idf, Lexicon lxcn, IndexReader ir, int pre, int pos
+    ) throws IOException {
+        if( !idf ) return of( scheme, lxcn, pre, pos );
+        Terms terms = MultiFields.getTerms( ir, lxcn.field() );
+        double n = terms != null ? terms.getDocCount() : ir.numDocs();
+        double[] term = new double[ lxcn.size ];
+        for( int i = 0; i < term.length; i++ ) {
+            term[i] = Math.log( 1d + n / Math.max( 1, lxcn.getWord( i ).df ) );
+        }
+        return new Weighting( scheme, true, distances( scheme, Math.max( pre, pos ) ), term );
+    }
+
+    private static double[] distances( Scheme scheme, int w ) {
+        double[] dist = new double[ w + 1 ];
+        for( int d = 1; d <= w; d++ ) {
+            switch( scheme ) {
+                case UNIFORM:  dist[d] = 1d; break;
+                case HARMONIC: dist[d] = 1d / d; break;
+                case LINEAR:   dist[d] = (double) ( w - d + 1 ) / w; break;
+            }
+        }
+        return dist;
+    }
+
+    /**
+     * Weight for the given pair of tokens.
+     *
+     * @param pre_i Term index for the leading token.
+     * @param pre_p Position for the leading token.
+     * @param pos_i Term index for the trailing token.
+     * @param pos_p Position of the trailing token.
+     * @return A weighting factor between the two token positions, or zero if they are farther
+     *         apart than the window width.
+     */
+    public double weight( int pre_i, int pre_p, int pos_i, int pos_p ) {
+        int d = Math.abs( pre_p - pos_p );
+        if( d == 0 || d >= dist.length ) return 0d;
+        return dist[d] * term[pre_i] * term[pos_i];
+    }
+
+    /**
+     * Maximum offset with a non-zero weight.
+     * @return The window width this weighting was computed for.
+     */
+    public int width() {
+        return dist.length - 1;
+    }
+
+    /**
+     * Number of term weights.
+     * @return The size of the lexicon this weighting was computed for.
+     */
+    public int terms() {
+        return term.length;
+    }
+
+    @Override
+    public String toString() {
+        return scheme.name().toLowerCase() + ( idf ? "-idf" : "" );
+    }
+}
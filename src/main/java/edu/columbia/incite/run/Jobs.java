@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.run;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared job execution layer for corpus workers.
+ *
+ * Jobs wraps a fixed thread pool and keeps a count of pending tasks, so that callers can block
+ * until all submitted work is done without polling the pool. While waiting, an optional reporter
+ * (typically a worker's {@code report()} method) is run by a scheduled timer thread at a fixed
+ * interval.
+ *
+ * Tasks that throw are logged, and the first error is rethrown by {@link #await(Runnable)}
+ * wrapped in a {@link JobException} once all tasks are done, so that failures are not mistaken
+ * for complete results. Workers should let errors escape their tasks instead of catching them.
+ *
+ * Instances can be reused for several rounds of submit/await, and should be closed after use to
+ * release their threads:
+ * {@code
+ * try( Jobs jobs = new Jobs( threads, interval ) ) {
+ *     for( ... ) jobs.submit( wrkr.work( ... ) );
+ *     jobs.await( wrkr::report );
+ * }
+ * }
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class Jobs implements AutoCloseable {
+
+    /** Default report interval in milliseconds. **/
+    public static final long DEFAULT_INTERVAL = 500;
+
+    private final ExecutorService exec;
+    private final ScheduledExecutorService timer;
+    private final long interval;
+
+    /* number of submitted tasks not yet finished */
+    private final AtomicLong pending = new AtomicLong();
+    /* first uncaught error in any task */
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private final Object lock = new Object();
+
+    /**
+     * Create a new job pool with the given number of threads and the default report interval.
+     * @param threads Number of worker threads.
+     */
+    public Jobs( int threads ) {
+        this( threads, DEFAULT_INTERVAL );
+    }
+
+    /**
+     * Create a new job pool with the given number of threads, reporting progress every
+     * {@code interval} milliseconds while waiting.
+     * @param threads  Number of worker threads.
+     * @param interval Report interval in milliseconds.
+     */
+    public Jobs( int threads, long interval ) {
+        this.exec     = Executors.newFixedThreadPool( threads );
+        this.timer    = Executors.newSingleThreadScheduledExecutor( ( r ) -> {
+            Thread t = new Thread( r, "jobs-reporter" );
+            t.setDaemon( true );
+            return t;
+        } );
+        this.interval = interval > 0 ? interval : DEFAULT_INTERVAL;
+    }
+
+    /**
+     * Submit a task for execution.
+     * @param task A {@link Runnable} task, e.g. produced by a worker's {@code work()} methods.
+     */
+    public void submit( final Runnable task ) {
+        pending.incrementAndGet();
+        exec.execute( () -> {
+            try {
+                task.run();
+            } catch( Throwable t ) {
+                error.compareAndSet( null, t );
+                Logger.getLogger( Jobs.class.getName() ).log( Level.SEVERE, null, t );
+            } finally {
+                if( pending.decrementAndGet() == 0 ) {
+                    synchronized( lock ) {
+                        lock.notifyAll();
+                    }
+                }
+            }
+        } );
+    }
+
+    /**
+     * Number of submitted tasks that have not finished yet.
+     * @return The number of pending tasks.
+     */
+    public long pending() {
+        return pending.get();
+    }
+
+    /**
+     * Block until all submitted tasks are done.
+     *
+     * @throws JobException if any task executed in this pool threw an error.
+     */
+    public void await() {
+        await( null );
+    }
+
+    /**
+     * Block until all submitted tasks are done, running the given reporter at this pool's report
+     * interval while waiting and once more after all tasks are done.
+     *
+     * Errors are sticky: once a task has failed, all subsequent calls to this method throw.
+     *
+     * @param reporter A progress reporter. May be {@code null}, in which case no reports are made.
+     *
+     * @throws JobException if any task executed in this pool threw an error.
+     */
+    public void await( Runnable reporter ) {
+        ScheduledFuture<?> sched = reporter == null ? null : timer.scheduleAtFixedRate(
+            reporter, 0, interval, TimeUnit.MILLISECONDS
+        );
+        try {
+            synchronized( lock ) {
+                while( pending.get() > 0 ) {
+                    lock.wait();
+                }
+            }
+        } catch( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while waiting for jobs", ex );
+        } finally {
+            if( sched != null ) {
+                sched.cancel( false );
+            }
+        }
+        if( reporter != null ) {
+            // final report runs on the timer thread, so it never overlaps a scheduled one.
+            try {
+                timer.submit( reporter ).get();
+            } catch( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+            } catch( ExecutionException ex ) {
+                Logger.getLogger( Jobs.class.getName() ).log( Level.WARNING, null, ex );
+            }
+        }
+        if( error.get() != null ) {
+            throw new JobException( error.get() );
+        }
+    }
+
+    /**
+     * First uncaught error thrown by any task executed in this pool, if any.
+     * @return A {@link Throwable}, or {@code null} if all tasks completed normally.
+     */
+    public Throwable error() {
+        return error.get();
+    }
+
+    @Override
+    public void close() {
+        exec.shutdown();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Thrown when waiting for a pool in which a task failed. The cause is the first error thrown
+     * by any of its tasks.
+     */
+    public static class JobException extends RuntimeException {
+        public JobException( Throwable cause ) {
+            super( "Job failed: " + cause, cause );
+        }
+    }
+}
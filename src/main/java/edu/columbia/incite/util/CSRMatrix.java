@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Immutable sparse matrix in compressed sparse row format, backed by a memory-mapped file.
+ *
+ * The file format consists of a header followed by three regions, all in native byte order:
+ * <ul>
+ * <li>Header: magic number {@link #MAGIC} (int), number of rows (int), number of columns (int),
+ * padding (int) and number of non-zero entries (long).</li>
+ * <li>Row pointers: {@code nrows + 1} longs. The entries for row i are stored at positions
+ * {@code ptr[i]} (inclusive) to {@code ptr[i+1]} (exclusive) of the following regions.</li>
+ * <li>Column indices: one int per entry, ascending within each row, padded to a multiple of
+ * eight bytes.</li>
+ * <li>Values: one double per entry.</li>
+ * </ul>
+ *
+ * {@link #open(Path)} maps these regions without reading them, so opening a matrix takes constant
+ * time and memory regardless of its size, and lookups read directly from the page cache. Files
+ * are produced from sorted triplet files, as written by
+ * {@link SparseMatrix#save(SparseMatrix, Path)}, with {@link #convert(Path, Path)}.
+ *
+ * As a single {@link java.nio.MappedByteBuffer} can't address more than 2GB, each region is mapped 
+ * in consecutive windows of {@link Triplets#WINDOW} bytes and entries are addressed by long 
+ * offsets, so the number of non-zero entries is not limited by the mapping.
+ *
+ * Instances of this class are immutable and thread-safe.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public final class CSRMatrix {
+
+    /** Magic number at the start of CSR files: "CSR1" in little-endian ASCII **/
+    public static final int MAGIC = 0x31525343;
+    /** Header size in bytes **/
+    public static final int HEADER = 24;
+
+    private static final int BUFFER = 1 << 20;
+
+    private final int nrows;
+    private final int ncols;
+    private final long nnz;
+    private final Region ptrs;
+    private final Region cols;
+    private final Region vals;
+
+    private CSRMatrix( int nrows, int ncols, long nnz, Region p, Region c, Region v ) {
+        this.nrows = nrows;
+        this.ncols = ncols;
+        this.nnz = nnz;
+        this.ptrs = p;
+        this.cols = c;
+        this.vals = v;
+    }
+
+    /**
+     * Map the CSR file at the given path.
+     *
+     * @param path A {@link Path} to a file written by {@link #convert(Path, Path)}.
+     * @return A new CSRMatrix backed by the given file.
+     *
+     * @throws IOException if the file can't be read or is not a valid CSR file.
+     */
+    public static CSRMatrix open( Path path ) throws IOException {
+        try( FileChannel fc = FileChannel.open( path, StandardOpenOption.READ ) ) {
+            ByteBuffer hdr = ByteBuffer.allocate( HEADER ).order( ByteOrder.nativeOrder() );
+            while( hdr.hasRemaining() && fc.read( hdr ) > 0 );
+            hdr.flip();
+            if( hdr.remaining() < HEADER || hdr.getInt() != MAGIC ) {
+                throw new IOException( String.format( "%s is not a CSR matrix file", path ) );
+            }
+            int nrows = hdr.getInt();
+            int ncols = hdr.getInt();
+            hdr.getInt();
+            long nnz = hdr.getLong();
+            long cOff = HEADER + ( nrows + 1L ) * Long.BYTES;
+            long vOff = align( cOff + nnz * Integer.BYTES );
+            if( fc.size() != vOff + nnz * Double.BYTES ) {
+                throw new IOException( String.format(
+                    "%s: expected %d bytes, found %d", path, vOff + nnz * Double.BYTES, fc.size()
+                ) );
+            }
+            return new CSRMatrix( nrows, ncols, nnz,
+                new Region( fc, HEADER, cOff - HEADER ),
+                new Region( fc, cOff, nnz * Integer.BYTES ),
+                new Region( fc, vOff, nnz * Double.BYTES )
+            );
+        }
+    }
+
+    /**
+     * Convert the sorted triplet file at the given path to CSR format.
+     *
+     * The input is read twice, sequentially: once to count entries per row, and once to copy
+     * them to the output. Memory use is proportional to the number of rows only.
+     *
+     * @param triplets A triplet file, sorted by row and column without repeated entries.
+     * @param out      A {@link Path} to write the CSR file to.
+     *
+     * @throws IOException if the input can't be read or is not sorted.
+     */
+    public static void convert( Path triplets, Path out ) throws IOException {
+        int[] counts = new int[ 1024 ];
+        int maxRow = -1;
+        int maxCol = -1;
+        int prev = -1;
+        long nnz = 0;
+        try( Triplets.Reader r = new Triplets.Reader( triplets ) ) {
+            while( r.advance() ) {
+                int i = r.i();
+                int j = r.j();
+                if( i < maxRow || ( i == maxRow && j <= prev ) ) {
+                    throw new IOException( String.format(
+                        "%s is not sorted at record %d", triplets, nnz
+                    ) );
+                }
+                if( i >= counts.length ) {
+                    counts = Arrays.copyOf( counts, Math.max( i + 1, counts.length * 2 ) );
+                }
+                counts[i]++;
+                maxRow = i;
+                maxCol = j > maxCol ? j : maxCol;
+                prev = j;
+                nnz++;
+            }
+        }
+        int nrows = maxRow + 1;
+        long cOff = HEADER + ( nrows + 1L ) * Long.BYTES;
+        long vOff = align( cOff + nnz * Integer.BYTES );
+        try( FileChannel fc = FileUtils.openChannel( out, true, true, true, false ) ) {
+            Section hdr = new Section( fc, 0 );
+            hdr.putInt( MAGIC );
+            hdr.putInt( nrows );
+            hdr.putInt( maxCol + 1 );
+            hdr.putInt( 0 );
+            hdr.putLong( nnz );
+            long ptr = 0;
+            for( int i = 0; i < nrows; i++ ) {
+                hdr.putLong( ptr );
+                ptr += counts[i];
+            }
+            hdr.putLong( ptr );
+            hdr.flush();
+            Section c = new Section( fc, cOff );
+            Section v = new Section( fc, vOff );
+            try( Triplets.Reader r = new Triplets.Reader( triplets ) ) {
+                while( r.advance() ) {
+                    c.putInt( r.j() );
+                    v.putDouble( r.x() );
+                }
+            }
+            c.flush();
+            v.flush();
+        }
+    }
+
+    /**
+     * Number of rows in this matrix, equal to the maximum row index plus one.
+     * @return The number of rows.
+     */
+    public int nrows() {
+        return nrows;
+    }
+
+    /**
+     * Number of columns in this matrix, equal to the maximum column index plus one.
+     * @return The number of columns.
+     */
+    public int ncols() {
+        return ncols;
+    }
+
+    /**
+     * Total number of non-zero entries in this matrix.
+     * @return The number of non-zero entries.
+     */
+    public long size() {
+        return nnz;
+    }
+
+    /**
+     * Number of non-zero entries in row i.
+     * @param i Row index.
+     * @return The number of non-zero entries in the given row, zero if it is out of bounds.
+     */
+    public int rowSize( int i ) {
+        if( i < 0 || i >= nrows ) return 0;
+        return Math.toIntExact( ptr( i + 1 ) - ptr( i ) );
+    }
+
+    /**
+     * Value at row i column j.
+     *
+     * Cells are found by binary search over the row's column indices.
+     *
+     * @param i Row index.
+     * @param j Col index.
+     * @return The value of the given entry, zero if it is not present.
+     */
+    public double get( int i, int j ) {
+        if( i < 0 || i >= nrows ) return 0d;
+        long lo = ptr( i );
+        long hi = ptr( i + 1 ) - 1;
+        while( lo <= hi ) {
+            long mid = ( lo + hi ) >>> 1;
+            int c = cols.getInt( mid * Integer.BYTES );
+            if( c < j ) lo = mid + 1;
+            else if( c > j ) hi = mid - 1;
+            else return vals.getDouble( mid * Double.BYTES );
+        }
+        return 0d;
+    }
+
+    /**
+     * Column indices of the non-zero entries in row i, in ascending order.
+     *
+     * The returned buffer is a view over the mapped file, unless the row crosses the boundary 
+     * between two mapped windows, in which case it is a copy.
+     *
+     * @param i Row index.
+     * @return An {@link IntBuffer} with {@link #rowSize(int)} column indices.
+     */
+    public IntBuffer cols( int i ) {
+        if( i < 0 || i >= nrows ) return IntBuffer.allocate( 0 );
+        return cols.slice( ptr( i ) * Integer.BYTES, ptr( i + 1 ) * Integer.BYTES ).asIntBuffer();
+    }
+
+    /**
+     * Values of the non-zero entries in row i, in the same order as {@link #cols(int)}.
+     *
+     * The returned buffer is a view over the mapped file, unless the row crosses the boundary 
+     * between two mapped windows, in which case it is a copy.
+     *
+     * @param i Row index.
+     * @return A {@link DoubleBuffer} with {@link #rowSize(int)} values.
+     */
+    public DoubleBuffer values( int i ) {
+        if( i < 0 || i >= nrows ) return DoubleBuffer.allocate( 0 );
+        return vals.slice( ptr( i ) * Double.BYTES, ptr( i + 1 ) * Double.BYTES ).asDoubleBuffer();
+    }
+
+    /* offset of the first entry of row i in the column and value regions, in entries */
+    private long ptr( int i ) {
+        return ptrs.getLong( (long) i * Long.BYTES );
+    }
+
+    private static long align( long off ) {
+        return ( off + Long.BYTES - 1 ) & ~( Long.BYTES - 1 );
+    }
+
+    /* a read-only file region mapped in consecutive windows of Triplets.WINDOW bytes. Regions 
+     * start at aligned offsets and windows are a multiple of eight bytes, so no value crosses 
+     * the boundary between two windows. */
+    private static final class Region {
+        private final ByteBuffer[] wins;
+
+        private Region( FileChannel fc, long off, long len ) throws IOException {
+            this.wins = new ByteBuffer[ Math.toIntExact( 
+                ( len + Triplets.WINDOW - 1 ) / Triplets.WINDOW 
+            ) ];
+            for( int w = 0; w < wins.length; w++ ) {
+                wins[w] = Triplets.window( 
+                    fc, FileChannel.MapMode.READ_ONLY, off + w * Triplets.WINDOW, off + len 
+                );
+            }
+        }
+
+        private int getInt( long pos ) {
+            return wins[ win( pos ) ].getInt( (int) ( pos % Triplets.WINDOW ) );
+        }
+
+        private long getLong( long pos ) {
+            return wins[ win( pos ) ].getLong( (int) ( pos % Triplets.WINDOW ) );
+        }
+
+        private double getDouble( long pos ) {
+            return wins[ win( pos ) ].getDouble( (int) ( pos % Triplets.WINDOW ) );
+        }
+
+        /* bytes from (inclusive) to (exclusive), copied only if they span several windows */
+        private ByteBuffer slice( long from, long to ) {
+            if( from == to ) return ByteBuffer.allocate( 0 ).order( ByteOrder.nativeOrder() );
+            if( win( from ) == win( to - 1 ) ) {
+                ByteBuffer b = wins[ win( from ) ].duplicate();
+                b.limit( (int) ( ( to - 1 ) % Triplets.WINDOW ) + 1 );
+                b.position( (int) ( from % Triplets.WINDOW ) );
+                return b.slice().order( ByteOrder.nativeOrder() );
+            }
+            ByteBuffer out = ByteBuffer.allocate( Math.toIntExact( to - from ) );
+            for( long pos = from; pos < to; ) {
+                ByteBuffer b = wins[ win( pos ) ].duplicate();
+                int off = (int) ( pos % Triplets.WINDOW );
+                b.position( off );
+                b.limit( (int) Math.min( b.capacity(), off + ( to - pos ) ) );
+                pos += b.remaining();
+                out.put( b );
+            }
+            out.flip();
+            return out.order( ByteOrder.nativeOrder() );
+        }
+
+        private static int win( long pos ) {
+            return (int) ( pos / Triplets.WINDOW );
+        }
+    }
+
+    /* buffered writer for a region of a file starting at a fixed offset */
+    private static final class Section {
+        private final FileChannel fc;
+        private final ByteBuffer buf;
+        private long pos;
+
+        private Section( FileChannel fc, long pos ) {
+            this.fc = fc;
+            this.pos = pos;
+            this.buf = ByteBuffer.allocateDirect( BUFFER ).order( ByteOrder.nativeOrder() );
+        }
+
+        private void putInt( int v ) throws IOException {
+            if( buf.remaining() < Integer.BYTES ) flush();
+            buf.putInt( v );
+        }
+
+        private void putLong( long v ) throws IOException {
+            if( buf.remaining() < Long.BYTES ) flush();
+            buf.putLong( v );
+        }
+
+        private void putDouble( double v ) throws IOException {
+            if( buf.remaining() < Double.BYTES ) flush();
+            buf.putDouble( v );
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            while( buf.hasRemaining() ) {
+                pos += fc.write( buf, pos );
+            }
+            buf.clear();
+        }
+    }
+}
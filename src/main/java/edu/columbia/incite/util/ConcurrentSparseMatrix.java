@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Thread-safe sparse matrix accumulator with a fixed number of rows.
+ *
+ * Rows are stored in one hash map each, allocated on first use, and guarded by a fixed number of
+ * lock stripes, so that concurrent updates to rows in different stripes never contend. All
+ * threads write to the same row maps, so memory use stays at roughly that of a single
+ * {@link SparseMatrix} regardless of the number of writers.
+ *
+ * Locking on every update is expensive for heavily skewed data, where a few rows receive most
+ * updates. Writers should collect updates in a private {@link SparseMatrix} of bounded size and
+ * add it with {@link #merge(SparseMatrix)}, which acquires each stripe once per row.
+ *
+ * Symmetric accumulators store only entries with {@code i <= j}, as symmetric 
+ * {@link SparseMatrix} instances do.
+ *
+ * The number of entries held is tracked as they are added, so callers can bound memory use by
+ * checking {@link #size()} and transferring the accumulated data elsewhere with {@link #drain()}.
+ *
+ * Alternatively, full accumulators can bound the number of entries per row to keep only each 
+ * row's heavy hitters. Bounded rows are Space-Saving summaries of 2k counters, kept in an indexed 
+ * min-heap: a column without a counter in a full row takes over the smallest counter, inheriting 
+ * its value as an error bound. Memory use is then proportional to the number of rows times k, 
+ * regardless of the number of distinct entries added, and each update takes O(log k) time. Only 
+ * the k largest counters in each row are drained, so drained rows hold at most k entries. For 
+ * non-negative increments, any column that holds more than 1/k of its row's total is drained, 
+ * and drained values are the counters minus their errors: lower bounds that fall short of the 
+ * true totals by at most 1/2k of the row's total, and exact for columns that never took over 
+ * another's counter. Rows are ranked by their counters, not by the drained lower bounds.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class ConcurrentSparseMatrix {
+
+    /** Default number of lock stripes **/
+    public static final int STRIPES = 256;
+
+    private final TIntDoubleMap[] rows;
+    private final Summary[] tops;
+    private final Object[] locks;
+    private final int mask;
+    private final boolean symmetric;
+    private final int topk;
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Create a new accumulator with the given number of rows and {@link #STRIPES} lock stripes.
+     * @param nrows Number of rows.
+     */
+    public ConcurrentSparseMatrix( int nrows ) {
+        this( nrows, STRIPES, false );
+    }
+
+    /**
+     * Create a new full or symmetric accumulator with the given number of rows and 
+     * {@link #STRIPES} lock stripes.
+     * @param nrows     Number of rows.
+     * @param symmetric If {@code true}, store only entries with {@code i <= j}.
+     */
+    public ConcurrentSparseMatrix( int nrows, boolean symmetric ) {
+        this( nrows, STRIPES, symmetric );
+    }
+
+    /**
+     * Create a new accumulator with the given number of rows and lock stripes.
+     * @param nrows     Number of rows.
+     * @param stripes   Number of lock stripes. Rounded up to a power of two.
+     * @param symmetric If {@code true}, store only entries with {@code i <= j}.
+     */
+    public ConcurrentSparseMatrix( int nrows, int stripes, boolean symmetric ) {
+        this( nrows, stripes, symmetric, 0 );
+    }
+
+    /**
+     * Create a new accumulator with the given number of rows and lock stripes, keeping the heavy
+     * hitters among the entries in each row.
+     * @param nrows     Number of rows.
+     * @param stripes   Number of lock stripes. Rounded up to a power of two.
+     * @param symmetric If {@code true}, store only entries with {@code i <= j}.
+     * @param topk      Number of entries to keep per row; rows hold 2k counters. Zero or 
+     *                  negative values keep all.
+     * 
+     * @throws IllegalArgumentException if rows are bounded in a symmetric accumulator.
+     */
+    public ConcurrentSparseMatrix( int nrows, int stripes, boolean symmetric, int topk ) {
+        if( symmetric && topk > 0 ) {
+            throw new IllegalArgumentException( "Can't bound rows of a symmetric matrix" );
+        }
+        int n = Integer.highestOneBit( Math.max( 1, stripes - 1 ) << 1 );
+        this.rows  = topk > 0 ? null : new TIntDoubleMap[ nrows ];
+        this.tops  = topk > 0 ? new Summary[ nrows ] : null;
+        this.locks = new Object[ n ];
+        for( int i = 0; i < n; i++ ) {
+            locks[i] = new Object();
+        }
+        this.mask = n - 1;
+        this.symmetric = symmetric;
+        this.topk = topk;
+    }
+
+    /**
+     * Increment entry at row i column j by the value d.
+     *
+     * @param i Row index, between 0 and the number of rows in this matrix.
+     * @param j Col index
+     * @param d Increment
+     */
+    public void update( int i, int j, double d ) {
+        if( symmetric && i > j ) {
+            int t = i;
+            i = j;
+            j = t;
+        }
+        synchronized( locks[ i & mask ] ) {
+            if( tops != null ) {
+                size.addAndGet( summary( i ).add( j, d ) );
+                return;
+            }
+            TIntDoubleMap row = row( i );
+            int n = row.size();
+            row.adjustOrPutValue( j, d, d );
+            size.addAndGet( row.size() - n );
+        }
+    }
+
+    /**
+     * Add the values in the given matrix to this matrix, and clear it.
+     *
+     * The given matrix must not be modified concurrently.
+     *
+     * @param src A SparseMatrix with values to add to this matrix. Its row indices must be lower
+     *            than the number of rows in this matrix, and it must be symmetric if and only if 
+     *            this matrix is.
+     */
+    public void merge( SparseMatrix src ) {
+        if( src.symmetric() != symmetric ) {
+            throw new IllegalArgumentException( "Can't merge full and symmetric matrices" );
+        }
+        src.forEachRow( ( i, row ) -> {
+            synchronized( locks[ i & mask ] ) {
+                if( tops != null ) {
+                    Summary tgt = summary( i );
+                    int n = 0;
+                    for( TIntDoubleIterator it = row.iterator(); it.hasNext(); ) {
+                        it.advance();
+                        n += tgt.add( it.key(), it.value() );
+                    }
+                    size.addAndGet( n );
+                    return true;
+                }
+                TIntDoubleMap tgt = row( i );
+                int n = tgt.size();
+                for( TIntDoubleIterator it = row.iterator(); it.hasNext(); ) {
+                    it.advance();
+                    tgt.adjustOrPutValue( it.key(), it.value(), it.value() );
+                }
+                size.addAndGet( tgt.size() - n );
+            }
+            return true;
+        } );
+        src.clear();
+    }
+
+    /**
+     * Number of entries in this accumulator.
+     * @return The number of non-zero entries added since the last call to {@link #drain()}.
+     */
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Transfer the data in this accumulator to a new {@link SparseMatrix}, leaving it empty.
+     *
+     * Rows are transferred one lock stripe at a time. Concurrent updates are not lost, but they may
+     * end up either in the returned matrix or in this accumulator.
+     *
+     * Bounded rows are transferred as the lower bounds of their k largest counters; see the class 
+     * description.
+     *
+     * @return A SparseMatrix with all values added to this accumulator so far.
+     */
+    public SparseMatrix drain() {
+        int nrows = tops != null ? tops.length : rows.length;
+        TIntDoubleMap[] out = new TIntDoubleMap[ nrows ];
+        for( int s = 0; s <= mask; s++ ) {
+            synchronized( locks[s] ) {
+                for( int i = s; i < nrows; i += mask + 1 ) {
+                    if( tops != null ) {
+                        if( tops[i] == null ) continue;
+                        size.addAndGet( -tops[i].n );
+                        out[i] = tops[i].map( topk );
+                        tops[i] = null;
+                    } else {
+                        out[i] = rows[i];
+                        rows[i] = null;
+                        if( out[i] != null ) size.addAndGet( -out[i].size() );
+                    }
+                }
+            }
+        }
+        return new SparseMatrix( out, symmetric );
+    }
+
+    /* caller must hold the row's lock */
+    private Summary summary( int i ) {
+        Summary row = tops[i];
+        if( row == null ) {
+            row = new Summary( 2 * topk );
+            tops[i] = row;
+        }
+        return row;
+    }
+
+    /* caller must hold the row's lock */
+    private TIntDoubleMap row( int i ) {
+        TIntDoubleMap row = rows[i];
+        if( row == null ) {
+            row = new TIntDoubleHashMap();
+            rows[i] = row;
+        }
+        return row;
+    }
+
+    /* Space-Saving summary of one row: an indexed min-heap of at most cap counters */
+    private static final class Summary {
+        private final int cap;
+        private final TIntIntMap pos = new TIntIntHashMap( 
+            Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1 
+        );
+        private int[] cols;
+        private double[] vals;
+        private double[] errs;
+        private int n;
+
+        Summary( int cap ) {
+            this.cap  = cap;
+            this.cols = new int[ Math.min( cap, 8 ) ];
+            this.vals = new double[ cols.length ];
+            this.errs = new double[ cols.length ];
+        }
+
+        /* add d to column j, taking over the smallest counter if full; returns counters added */
+        int add( int j, double d ) {
+            int p = pos.get( j );
+            if( p >= 0 ) {
+                vals[p] += d;
+                down( up( p ) );
+                return 0;
+            }
+            if( n < cap ) {
+                if( n == cols.length ) grow();
+                set( n, j, d, 0d );
+                up( n++ );
+                return 1;
+            }
+            pos.remove( cols[0] );
+            set( 0, j, vals[0] + d, vals[0] );
+            down( 0 );
+            return 0;
+        }
+
+        /* lower bounds for the k largest counters */
+        TIntDoubleMap map( int k ) {
+            int m = n;
+            TIntDoubleMap out = new TIntDoubleHashMap( Math.min( k, n ) );
+            // popping the min-heap sorts counters in descending order; the summary is spent.
+            while( n > 0 ) {
+                swap( 0, --n );
+                down( 0 );
+            }
+            for( int p = 0; p < Math.min( k, m ); p++ ) {
+                out.put( cols[p], vals[p] - errs[p] );
+            }
+            return out;
+        }
+
+        private int up( int p ) {
+            for( int q; p > 0 && vals[ q = ( p - 1 ) >>> 1 ] > vals[p]; p = q ) {
+                swap( p, q );
+            }
+            return p;
+        }
+
+        private void down( int p ) {
+            for( int c; ( c = 2 * p + 1 ) < n; p = c ) {
+                if( c + 1 < n && vals[ c + 1 ] < vals[c] ) c++;
+                if( vals[p] <= vals[c] ) break;
+                swap( p, c );
+            }
+        }
+
+        private void swap( int p, int q ) {
+            int j = cols[p];
+            double v = vals[p];
+            double e = errs[p];
+            set( p, cols[q], vals[q], errs[q] );
+            set( q, j, v, e );
+        }
+
+        private void set( int p, int j, double v, double e ) {
+            cols[p] = j;
+            vals[p] = v;
+            errs[p] = e;
+            pos.put( j, p );
+        }
+
+        private void grow() {
+            int len = Math.min( cap, cols.length << 1 );
+            cols = Arrays.copyOf( cols, len );
+            vals = Arrays.copyOf( vals, len );
+            errs = Arrays.copyOf( errs, len );
+        }
+    }
+}
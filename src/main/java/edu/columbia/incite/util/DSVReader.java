@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Class for reading back matrix-type data written by {@link DSVWriter}.
+ *
+ * Files are assumed to contain a header row with a row id header followed by column ids, and one
+ * row per record with a row id followed by one value per column. Missing values are read as 0.
+ *
+ * As {@link DSVWriter} does not escape strings, row ids are parsed from the right: the last
+ * {@code n} fields in each row are taken as values, where {@code n} is the number of columns in
+ * the header, and everything before them is taken as the row id. This allows reading back terms
+ * that contain the column separator. Column ids must not contain it.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public class DSVReader {
+
+    /**
+     * Read a long integer matrix from the given file using the default column separator.
+     *
+     * @param file A file written by {@link DSVWriter}.
+     * @return A {@link LongTable} with the file's row ids, column ids and values.
+     * @throws IOException
+     */
+    public static LongTable readLongs( Path file ) throws IOException {
+        return readLongs( file, DSVWriter.COL_SEP );
+    }
+
+    /**
+     * Read a long integer matrix from the given file using the given column separator.
+     *
+     * @param file   A file written by {@link DSVWriter}.
+     * @param colSep The column separator used in the given file.
+     * @return A {@link LongTable} with the file's row ids, column ids and values.
+     * @throws IOException
+     */
+    public static LongTable readLongs( Path file, String colSep ) throws IOException {
+        List<String> rows = new ArrayList<>();
+        List<long[]> data = new ArrayList<>();
+        List<String> cols;
+        try( BufferedReader r = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+            String line = r.readLine();
+            if( line == null ) {
+                throw new IOException( String.format( "%s: missing header row", file ) );
+            }
+            String[] head = line.split( Pattern.quote( colSep ), -1 );
+            cols = Arrays.asList( Arrays.copyOfRange( head, 1, head.length ) );
+            while( ( line = r.readLine() ) != null ) {
+                if( line.isEmpty() ) continue;
+                long[] vals = new long[ cols.size() ];
+                rows.add( parse( file, rows.size(), line, colSep, vals ) );
+                data.add( vals );
+            }
+        }
+        return new LongTable( rows, cols, data.toArray( new long[data.size()][] ) );
+    }
+
+    /**
+     * Add the values in the given file to the given matrix, using the default column separator.
+     *
+     * The file is read one row at a time, and only non-zero values are added, so no copy of its
+     * contents is held in memory besides the given matrix. Rows and columns are matched as in
+     * {@link LongTable#align(List, List)}.
+     *
+     * @param file A file written by {@link DSVWriter}.
+     * @param rows Row ids for the given matrix. Must match the file's rows exactly and in order.
+     * @param cols Column ids for the given matrix. Must contain all of the file's columns.
+     * @param out  A {@link LongMatrix} with {@code rows.size()} rows and {@code cols.size()}
+     *             columns.
+     * @return The given matrix.
+     * @throws IOException if the file can't be read, or its rows or columns do not match the
+     *                     given ones.
+     */
+    public static LongMatrix readLongs(
+        Path file, List<String> rows, List<String> cols, LongMatrix out
+    ) throws IOException {
+        String colSep = DSVWriter.COL_SEP;
+        try( BufferedReader r = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+            String line = r.readLine();
+            if( line == null ) {
+                throw new IOException( String.format( "%s: missing header row", file ) );
+            }
+            String[] head = line.split( Pattern.quote( colSep ), -1 );
+            int[] map;
+            try {
+                map = columns( Arrays.asList( head ).subList( 1, head.length ), cols );
+            } catch( IllegalArgumentException ex ) {
+                throw new IOException( String.format( "%s: %s", file, ex.getMessage() ), ex );
+            }
+            long[] vals = new long[ map.length ];
+            int row = 0;
+            while( ( line = r.readLine() ) != null ) {
+                if( line.isEmpty() ) continue;
+                String id = parse( file, row, line, colSep, vals );
+                if( row >= rows.size() || !rows.get( row ).equals( id ) ) {
+                    throw new IOException( String.format( 
+                        "%s: row %d (%s) does not match row ids", file, row, id 
+                    ) );
+                }
+                for( int c = 0; c < map.length; c++ ) {
+                    if( vals[c] != 0 ) out.add( row, map[c], vals[c] );
+                }
+                row++;
+            }
+            if( row != rows.size() ) {
+                throw new IOException( String.format( 
+                    "%s: found %d rows, expected %d", file, row, rows.size() 
+                ) );
+            }
+        }
+        return out;
+    }
+
+    /* parse the values in the given line into the given array, returning the line's row id */
+    private static String parse( Path file, int row, String line, String colSep, long[] vals )
+    throws IOException {
+        int end = line.length();
+        for( int c = vals.length - 1; c >= 0; c-- ) {
+            int sep = line.lastIndexOf( colSep, end - 1 );
+            if( sep < 0 ) {
+                throw new IOException( String.format(
+                    "%s: row %d has fewer than %d values", file, row, vals.length
+                ) );
+            }
+            String val = line.substring( sep + colSep.length(), end );
+            vals[c] = val.isEmpty() ? 0 : Long.parseLong( val );
+            end = sep;
+        }
+        return line.substring( 0, end );
+    }
+
+    /* positions in the given target columns of each of the given source columns */
+    private static int[] columns( List<String> src, List<String> tgt ) {
+        Map<String,Integer> pos = new HashMap<>();
+        for( int c = 0; c < tgt.size(); c++ ) {
+            pos.put( tgt.get( c ), c );
+        }
+        int[] map = new int[ src.size() ];
+        for( int c = 0; c < map.length; c++ ) {
+            Integer p = pos.get( src.get( c ) );
+            if( p == null ) {
+                throw new IllegalArgumentException( String.format( 
+                    "Column %s not found", src.get( c ) 
+                ) );
+            }
+            map[c] = p;
+        }
+        return map;
+    }
+
+    /**
+     * Simple struct to hold a long integer matrix with row and column ids.
+     */
+    public static class LongTable {
+        /** Row ids, in file order **/
+        public final List<String> rows;
+        /** Column ids, in file order **/
+        public final List<String> cols;
+        /** Values, indexed by row and column position **/
+        public final long[][] data;
+
+        /**
+         * Create a new LongTable with the given row and column ids and values.
+         * @param rows Row ids.
+         * @param cols Column ids.
+         * @param data Values.
+         */
+        public LongTable( List<String> rows, List<String> cols, long[][] data ) {
+            this.rows = rows;
+            this.cols = cols;
+            this.data = data;
+        }
+
+        /**
+         * Position of the given column id in this table.
+         * @param col A column id.
+         * @return The position of the given column, or -1 if it is not present in this table.
+         */
+        public int col( String col ) {
+            return cols.indexOf( col );
+        }
+
+        /**
+         * Copy this table's values into a matrix with the given rows and columns.
+         *
+         * Rows must match this table's rows exactly and in the same order. Columns are matched by
+         * id and may be in any order; columns not present in this table are filled with 0, but
+         * all of this table's columns must be contained in the given list.
+         *
+         * @param rows Row ids for the returned matrix.
+         * @param cols Column ids for the returned matrix.
+         * @return A {@code long[rows.size()][cols.size()]} matrix with this table's values.
+         * @throws IllegalArgumentException if this table's rows or columns do not match the given
+         *                                  ones.
+         */
+        public long[][] align( List<String> rows, List<String> cols ) {
+            if( !this.rows.equals( rows ) ) {
+                throw new IllegalArgumentException( "Row ids do not match" );
+            }
+            int[] map = columns( this.cols, cols );
+            long[][] out = new long[ rows.size() ][ cols.size() ];
+            for( int r = 0; r < out.length; r++ ) {
+                for( int c = 0; c < map.length; c++ ) {
+                    out[r][ map[c] ] = data[r][c];
+                }
+            }
+            return out;
+        }
+    }
+}
@@ -462,7 +462,50 @@ public class DSVWriter<D> {
         }
         ps.close();
     }
-      
+
+    /**
+     * Convenience method to write long integer matrices.
+     *
+     * This method will use default values for row separator, column separator, missing values and
+     * whether to include a header row.
+     *
+     * Output is identical to that of {@link #write(Writer, long[][], List, List, String)}, but
+     * rows are extracted one at a time, so sparse matrices are never materialized in full.
+     *
+     * @param ps      A print stream to write data to.
+     * @param data    A {@link LongMatrix} with matrix data.
+     * @param rows    A list of row ids of the same length as the matrix' number of rows.
+     * @param cols    A list of col ids of the same length as the matrix' number of columns.
+     * @param idTop   A string to use as row id header (i.e. the 0,0 entry in the resulting file).
+     *
+     * @throws IOException
+     */
+    public static void write(
+        Writer ps, LongMatrix data, List<String> rows, List<String> cols, String idTop
+    ) throws IOException {
+        if( rows.size() != data.rows || cols.size() != data.cols ) {
+            throw new IllegalArgumentException();
+        }
+
+        List<String> head = new ArrayList<>();
+        head.add( idTop );
+        head.addAll( cols );
+        ps.append( String.join( COL_SEP, head.toArray( new String[head.size()] ) ) );
+        ps.append( ROW_SEP );
+
+        long[] buf = new long[ data.cols ];
+        for( int i = 0; i < data.rows; i++ ) {
+            ps.append( rows.get( i ) );
+            data.row( i, buf );
+            for( long x : buf ) {
+                ps.append( COL_SEP );
+                ps.append( Long.toString( x ) );
+            }
+            ps.append( ROW_SEP );
+        }
+        ps.close();
+    }
+
     private static <C> String makeHead( String idCol, SortedSet<C> dataCols,
         Function<C,String> cCodec, String rowSep, String colSep 
     ) {
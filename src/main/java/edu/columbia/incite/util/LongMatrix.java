@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.util;
+
+import java.util.Arrays;
+
+import gnu.trove.iterator.TIntLongIterator;
+import gnu.trove.map.TIntLongMap;
+import gnu.trove.map.hash.TIntLongHashMap;
+
+/**
+ * Fixed-size matrix of long integer counts.
+ *
+ * Two representations are provided: {@link Dense}, backed by a {@code long[][]} array, and
+ * {@link Sparse}, which stores only non-zero entries in one hash map per row, allocated on first
+ * use. A sparse entry takes roughly three times the memory of a dense one, so sparse matrices
+ * are preferable below a density of about {@link #SPARSE_DENSITY}. See
+ * {@link #make(int, int, double)}.
+ *
+ * NB: Instances of this class are not thread-safe, but updates to different rows from different
+ * threads are; this is sufficient for {@link edu.columbia.incite.corpus.work.PostingsCollector}s
+ * that store one term per row.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public abstract class LongMatrix {
+
+    /** Estimated density below which {@link #make(int, int, double)} produces sparse matrices **/
+    public static final double SPARSE_DENSITY = 0.25;
+
+    /** Number of rows **/
+    public final int rows;
+    /** Number of columns **/
+    public final int cols;
+
+    private LongMatrix( int rows, int cols ) {
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * Create a new empty matrix with the given dimensions, using a sparse representation if the
+     * given estimated density is below {@link #SPARSE_DENSITY}.
+     *
+     * @param rows    Number of rows.
+     * @param cols    Number of columns.
+     * @param density Estimated proportion of non-zero entries.
+     * @return A new {@link Dense} or {@link Sparse} matrix.
+     */
+    public static LongMatrix make( int rows, int cols, double density ) {
+        return density < SPARSE_DENSITY ? new Sparse( rows, cols ) : new Dense( rows, cols );
+    }
+
+    /**
+     * Wrap the given {@code long[][]} array in a dense matrix, without copying.
+     *
+     * The given array is assumed to be rectangular, with rows of equal length. See
+     * {@link DSVWriter#write(java.io.Writer, long[][], java.util.List, java.util.List)}.
+     *
+     * @param data A {@code long[][]} array.
+     * @return A {@link Dense} matrix backed by the given array.
+     */
+    public static LongMatrix wrap( long[][] data ) {
+        return new Dense( data );
+    }
+
+    /**
+     * Value at row i column j.
+     * @param i Row index.
+     * @param j Column index.
+     * @return The value of the given entry, zero if it has not been set.
+     */
+    public abstract long get( int i, int j );
+
+    /**
+     * Increment entry at row i column j by the value v.
+     * @param i Row index.
+     * @param j Column index.
+     * @param v Increment.
+     */
+    public abstract void add( int i, int j, long v );
+
+    /**
+     * Copy the values in row i to the given buffer.
+     * @param i   Row index.
+     * @param buf An array of length {@link #cols}.
+     * @return A reference to buf.
+     */
+    public abstract long[] row( int i, long[] buf );
+
+    /**
+     * Number of non-zero entries in this matrix.
+     * @return The number of non-zero entries.
+     */
+    public abstract long nonZero();
+
+    /**
+     * Increment the values in this matrix by the values in the given matrix.
+     * @param src A matrix with the same dimensions as this one.
+     * @return A reference to this matrix.
+     */
+    public LongMatrix add( LongMatrix src ) {
+        if( src.rows != rows || src.cols != cols ) {
+            throw new IllegalArgumentException( String.format(
+                "Can't add %dx%d matrix to %dx%d matrix", src.rows, src.cols, rows, cols
+            ) );
+        }
+        src.addTo( this );
+        return this;
+    }
+
+    /**
+     * Copy the data in this matrix to a {@code long[][]} array.
+     *
+     * NB: This materializes all entries, including zeros.
+     *
+     * @return A new {@code long[][]} array with the contents of this matrix.
+     */
+    public long[][] toArray() {
+        long[][] out = new long[ rows ][];
+        for( int i = 0; i < rows; i++ ) {
+            out[i] = row( i, new long[ cols ] );
+        }
+        return out;
+    }
+
+    /* increment values in the given matrix by the values in this one */
+    abstract void addTo( LongMatrix tgt );
+
+    /**
+     * Dense matrix backed by a {@code long[][]} array.
+     */
+    public static final class Dense extends LongMatrix {
+        private final long[][] data;
+
+        private Dense( int rows, int cols ) {
+            this( new long[ rows ][ cols ] );
+        }
+
+        private Dense( long[][] data ) {
+            super( data.length, data.length == 0 ? 0 : data[0].length );
+            this.data = data;
+        }
+
+        @Override
+        public long get( int i, int j ) {
+            return data[i][j];
+        }
+
+        @Override
+        public void add( int i, int j, long v ) {
+            data[i][j] += v;
+        }
+
+        @Override
+        public long[] row( int i, long[] buf ) {
+            System.arraycopy( data[i], 0, buf, 0, cols );
+            return buf;
+        }
+
+        @Override
+        public long nonZero() {
+            long n = 0;
+            for( long[] row : data ) {
+                for( long v : row ) {
+                    if( v != 0 ) n++;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        void addTo( LongMatrix tgt ) {
+            for( int i = 0; i < rows; i++ ) {
+                for( int j = 0; j < cols; j++ ) {
+                    if( data[i][j] != 0 ) tgt.add( i, j, data[i][j] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Sparse matrix storing non-zero entries in one hash map per row.
+     *
+     * Row maps are allocated on the first update to each row, so rows that are never touched take
+     * no space beyond a reference.
+     */
+    public static final class Sparse extends LongMatrix {
+        private final TIntLongMap[] data;
+
+        private Sparse( int rows, int cols ) {
+            super( rows, cols );
+            this.data = new TIntLongMap[ rows ];
+        }
+
+        @Override
+        public long get( int i, int j ) {
+            return data[i] == null ? 0 : data[i].get( j );
+        }
+
+        @Override
+        public void add( int i, int j, long v ) {
+            if( j < 0 || j >= cols ) throw new ArrayIndexOutOfBoundsException( j );
+            if( data[i] == null ) data[i] = new TIntLongHashMap();
+            data[i].adjustOrPutValue( j, v, v );
+        }
+
+        @Override
+        public long[] row( int i, long[] buf ) {
+            Arrays.fill( buf, 0, cols, 0 );
+            if( data[i] == null ) return buf;
+            for( TIntLongIterator it = data[i].iterator(); it.hasNext(); ) {
+                it.advance();
+                buf[ it.key() ] = it.value();
+            }
+            return buf;
+        }
+
+        @Override
+        public long nonZero() {
+            long n = 0;
+            for( TIntLongMap row : data ) {
+                if( row != null ) n += row.size();
+            }
+            return n;
+        }
+
+        @Override
+        void addTo( LongMatrix tgt ) {
+            for( int i = 0; i < rows; i++ ) {
+                if( data[i] == null ) continue;
+                for( TIntLongIterator it = data[i].iterator(); it.hasNext(); ) {
+                    it.advance();
+                    tgt.add( i, it.key(), it.value() );
+                }
+            }
+        }
+    }
+}
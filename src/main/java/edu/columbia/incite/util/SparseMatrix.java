@@ -16,26 +16,38 @@
  */
 package edu.columbia.incite.util;
 
+import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.procedure.TIntObjectProcedure;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 
 import java.io.IOException;
-import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import edu.columbia.incite.run.Jobs;
 import edu.columbia.incite.util.SparseMatrix.Record;
 
 /**
  * Naive, single-threaded implementation for a sparse matrix in simple tuple format.
  * 
+ * Symmetric matrices store only entries with {@code i <= j}: an update to (i,j) is an update to 
+ * both (i,j) and (j,i), and is stored in the upper triangle. {@link #get(int, int)}, 
+ * {@link #triplets()}, {@link #arrays()} and {@link #save(SparseMatrix, Path)} mirror stored 
+ * entries, so symmetric matrices look the same as their full equivalents to callers, and files 
+ * written from them are identical, at half the memory.
+ * 
  * NB: Instances of this class are not thread-safe and should be synchronized externally; the 
  * {@link #merge(edu.columbia.incite.util.SparseMatrix)} method may be used to combine data from 
  * different instances in multithreaded environments.
@@ -46,12 +58,44 @@ public class SparseMatrix {
 
     /** Record struct size in bytes. **/
     public static int size_t = Integer.BYTES + Integer.BYTES + Double.BYTES;
+    /** Maximum number of mirrored entries sorted in memory when saving symmetric matrices. **/
+    public static final int SORT_RECORDS = 1 << 22;
     
     private final TIntObjectMap<TIntDoubleMap> data = new TIntObjectHashMap<>();
+    private final boolean symmetric;
 
     private int maxRow = -1;
     private int maxCol = -1;
     
+    /**
+     * Create a new empty SparseMatrix.
+     */
+    public SparseMatrix() {
+        this( false );
+    }
+    
+    /**
+     * Create a new empty SparseMatrix, storing only the upper triangle if symmetric.
+     * 
+     * @param symmetric If {@code true}, store only entries with {@code i <= j}.
+     */
+    public SparseMatrix( boolean symmetric ) {
+        this.symmetric = symmetric;
+    }
+    
+    /* take ownership of the given rows; null entries are skipped */
+    SparseMatrix( TIntDoubleMap[] rows, boolean symmetric ) {
+        this( symmetric );
+        for( int i = 0; i < rows.length; i++ ) {
+            if( rows[i] == null || rows[i].isEmpty() ) continue;
+            data.put( i, rows[i] );
+            maxRow = i;
+            for( int j : rows[i].keys() ) {
+                maxCol = j > maxCol ? j : maxCol;
+            }
+        }
+    }
+    
     /** 
      * Increment entry at row i column j by the value d.
      * 
@@ -60,24 +104,223 @@ public class SparseMatrix {
      * @param d Increment
      */
     public void update( int i, int j, double d ) {
+        if( symmetric && i > j ) {
+            int t = i;
+            i = j;
+            j = t;
+        }
         maxRow = i > maxRow ? i : maxRow;
-        maxCol = j > maxRow ? j : maxRow;
-        data.putIfAbsent( i, new TIntDoubleHashMap() );
-        data.get( i ).adjustOrPutValue( j, d, d );
+        maxCol = j > maxCol ? j : maxCol;
+        TIntDoubleMap row = data.get( i );
+        if( row == null ) {
+            row = new TIntDoubleHashMap();
+            data.put( i, row );
+        }
+        row.adjustOrPutValue( j, d, d );
+    }
+    
+    /**
+     * Value at row i column j.
+     * 
+     * @param i Row index
+     * @param j Col index
+     * @return The value of the given entry, zero if it has not been set.
+     */
+    public double get( int i, int j ) {
+        TIntDoubleMap row = symmetric && i > j ? data.get( j ) : data.get( i );
+        return row == null ? 0d : row.get( symmetric && i > j ? i : j );
+    }
+    
+    /**
+     * Whether this matrix stores only its upper triangle.
+     * 
+     * @return {@code true} if this matrix is symmetric.
+     */
+    public boolean symmetric() {
+        return symmetric;
     }
     
     /**
      * Increments values in this SparseMatrix by the values from the given src Sparsematrix.
      * 
-     * @param src A SparseMatrix with values to add to this matrix.
+     * @param src A SparseMatrix with values to add to this matrix. Must be symmetric if and only 
+     *            if this matrix is.
      */
     public void merge( SparseMatrix src ) {
-        for( int i : src.data.keys() ) {
-            TIntDoubleMap row = src.data.get( i );
-            for( int j : row.keys() ) { 
-                this.update( i, j, row.get( j ) );
+        check( src );
+        for( TIntObjectIterator<TIntDoubleMap> it = src.data.iterator(); it.hasNext(); ) {
+            it.advance();
+            TIntDoubleMap row = this.data.get( it.key() );
+            if( row == null ) {
+                this.data.put( it.key(), new TIntDoubleHashMap( it.value() ) );
+            } else {
+                add( row, it.value() );
+            }
+        }
+        this.maxRow = src.maxRow > maxRow ? src.maxRow : maxRow;
+        this.maxCol = src.maxCol > maxCol ? src.maxCol : maxCol;
+    }
+    
+    /**
+     * Merge the given SparseMatrix instances into one, using the given number of threads.
+     * 
+     * Rows are assigned to {@code threads * 4} interleaved partitions, and each partition is 
+     * merged by a separate task. Each row in the result reuses the largest instance of that row 
+     * among the given matrices, so the given matrices are consumed: their data is transferred or 
+     * added to the result, and they are left empty.
+     * 
+     * @param parts   Any number of SparseMatrix instances. Must not be modified concurrently, and 
+     *                must be either all symmetric or all not symmetric.
+     * @param threads Number of threads to run merge tasks on.
+     * @return A new SparseMatrix containing the sum of all the given matrices.
+     */
+    public static SparseMatrix merge( List<SparseMatrix> parts, int threads ) {
+        int rows = 0;
+        boolean symmetric = !parts.isEmpty() && parts.get( 0 ).symmetric;
+        for( SparseMatrix m : parts ) {
+            m.check( parts.get( 0 ) );
+            rows = m.maxRow + 1 > rows ? m.maxRow + 1 : rows;
+        }
+        TIntDoubleMap[] out = new TIntDoubleMap[ rows ];
+        int n = Math.max( 1, threads ) * 4;
+        try( Jobs jobs = new Jobs( Math.max( 1, threads ) ) ) {
+            for( int p = 0; p < n; p++ ) {
+                final int first = p;
+                jobs.submit( () -> {
+                    for( int i = first; i < out.length; i += n ) {
+                        out[i] = mergeRow( parts, i );
+                    }
+                } );
+            }
+            jobs.await();
+        }
+        for( SparseMatrix m : parts ) {
+            m.data.clear();
+            m.maxRow = -1;
+            m.maxCol = -1;
+        }
+        return new SparseMatrix( out, symmetric );
+    }
+    
+    private void check( SparseMatrix src ) {
+        if( src.symmetric != symmetric ) {
+            throw new IllegalArgumentException( String.format(
+                "Can't merge %s and %s matrices", 
+                symmetric ? "symmetric" : "full", src.symmetric ? "symmetric" : "full"
+            ) );
+        }
+    }
+    
+    /* merge row i from all parts into the largest one */
+    private static TIntDoubleMap mergeRow( List<SparseMatrix> parts, int i ) {
+        TIntDoubleMap tgt = null;
+        for( SparseMatrix m : parts ) {
+            TIntDoubleMap row = m.data.get( i );
+            if( row != null && ( tgt == null || row.size() > tgt.size() ) ) tgt = row;
+        }
+        if( tgt == null ) return null;
+        for( SparseMatrix m : parts ) {
+            TIntDoubleMap row = m.data.get( i );
+            if( row != null && row != tgt ) add( tgt, row );
+        }
+        return tgt;
+    }
+    
+    private static void add( TIntDoubleMap tgt, TIntDoubleMap src ) {
+        for( TIntDoubleIterator it = src.iterator(); it.hasNext(); ) {
+            it.advance();
+            tgt.adjustOrPutValue( it.key(), it.value(), it.value() );
+        }
+    }
+    
+    /**
+     * Split this block-diagonal matrix into its diagonal blocks.
+     * 
+     * Entries in block s have row and column indices between {@code s * size} (inclusive) and 
+     * {@code ( s + 1 ) * size} (exclusive), and are added to the s-th returned matrix with both 
+     * indices reduced by {@code s * size}. This matrix is not modified.
+     * 
+     * @param size Number of rows and columns in each block.
+     * @return One SparseMatrix per block, up to the block containing the last row of this matrix.
+     * 
+     * @throws IllegalStateException if this matrix has entries outside of its diagonal blocks.
+     */
+    public SparseMatrix[] blocks( int size ) {
+        SparseMatrix[] out = new SparseMatrix[ maxRow < 0 ? 0 : maxRow / size + 1 ];
+        for( int s = 0; s < out.length; s++ ) {
+            out[s] = new SparseMatrix( symmetric );
+        }
+        for( TIntObjectIterator<TIntDoubleMap> it = data.iterator(); it.hasNext(); ) {
+            it.advance();
+            int s = it.key() / size;
+            int off = s * size;
+            for( TIntDoubleIterator row = it.value().iterator(); row.hasNext(); ) {
+                row.advance();
+                if( row.key() / size != s ) {
+                    throw new IllegalStateException( String.format( 
+                        "Entry ( %d, %d ) is not in a diagonal block of size %d", 
+                        it.key(), row.key(), size
+                    ) );
+                }
+                out[s].update( it.key() - off, row.key() - off, row.value() );
             }
         }
+        return out;
+    }
+    
+    /**
+     * Keep only the k largest entries in each row of this matrix, dropping all others.
+     * 
+     * Ties at the k-th largest value are broken arbitrarily.
+     * 
+     * @param k Maximum number of entries per row.
+     * 
+     * @throws IllegalStateException if this matrix is symmetric, as the rows of its full 
+     * equivalent are not stored.
+     */
+    public void top( int k ) {
+        if( symmetric ) {
+            throw new IllegalStateException( "Can't prune rows of a symmetric matrix" );
+        }
+        maxCol = -1;
+        for( TIntObjectIterator<TIntDoubleMap> it = data.iterator(); it.hasNext(); ) {
+            it.advance();
+            TIntDoubleMap row = top( it.value(), k );
+            it.setValue( row );
+            for( int j : row.keys() ) {
+                maxCol = j > maxCol ? j : maxCol;
+            }
+        }
+    }
+    
+    /**
+     * Select the k largest entries in the given row.
+     * 
+     * @param row A row map.
+     * @param k   Maximum number of entries to keep.
+     * @return The given row if it has at most k entries, or a new row map with its k largest 
+     *         entries.
+     */
+    static TIntDoubleMap top( TIntDoubleMap row, int k ) {
+        if( row.size() <= k ) return row;
+        double[] vals = row.values();
+        Arrays.sort( vals );
+        double min = vals[ vals.length - k ];
+        int ties = 0;
+        for( int i = vals.length - k; i < vals.length && vals[i] == min; i++ ) ties++;
+        TIntDoubleMap out = new TIntDoubleHashMap( 2 * k );
+        for( TIntDoubleIterator it = row.iterator(); it.hasNext(); ) {
+            it.advance();
+            if( it.value() > min || ( it.value() == min && ties-- > 0 ) ) {
+                out.put( it.key(), it.value() );
+            }
+        }
+        return out;
+    }
+    
+    /* visit all rows in this matrix, in no particular order */
+    void forEachRow( TIntObjectProcedure<TIntDoubleMap> proc ) {
+        data.forEachEntry( proc );
     }
     
     /**
@@ -86,7 +329,7 @@ public class SparseMatrix {
      * @return An {@code int[]{row,col}} array with maximum indices.
      */
     public int[] last() {
-        return new int[]{ maxRow, maxCol };
+        return symmetric ? new int[]{ maxCol, maxCol } : new int[]{ maxRow, maxCol };
     }
     
     /**
@@ -98,7 +341,12 @@ public class SparseMatrix {
      * @return number of rows with non-zero entries in this matrix.
      */
     public int nrows() {
-        return data.keys().length;
+        if( !symmetric ) return data.keys().length;
+        TIntSet rows = new TIntHashSet( data.keySet() );
+        for( TIntDoubleMap row : data.valueCollection() ) {
+            rows.addAll( row.keySet() );
+        }
+        return rows.size();
     }
 
     /**
@@ -115,14 +363,16 @@ public class SparseMatrix {
      * Total number of non-zero entries in this SparseMatrix.
      * 
      * NB: This number times the value of {@link #size_t} will equal the total size of 
-     * this SparseMatrix in bytes.
+     * this SparseMatrix in bytes. For symmetric matrices, this includes mirrored entries, so it is 
+     * about twice the number of entries actually stored.
      * 
      * @return The number of non-zero entries in this SparseMatrix
      */
     public long size() {
         long size = 0;
         for( int i : data.keys() ) {
-            size += data.get( i ).size();
+            TIntDoubleMap row = data.get( i );
+            size += symmetric ? 2 * row.size() - ( row.containsKey( i ) ? 1 : 0 ) : row.size();
         }
         return size;
     }
@@ -133,12 +383,15 @@ public class SparseMatrix {
      * @return A new SparseMatrix containing a copy of the data in src.
      */
     public static SparseMatrix clone( SparseMatrix src ) {
-        return copy( src, new SparseMatrix() );
+        return copy( src, new SparseMatrix( src.symmetric ) );
     }
 
     /**
      * Copy the given src SparseMatrix to the given tgt SparseMatrix.
      * 
+     * If src is symmetric and tgt is not, mirrored entries are copied too. If tgt is symmetric and 
+     * src is not, src is assumed to be symmetric and only its upper triangle is copied.
+     * 
      * @param src A SparseMatrix to read values from.
      * @param tgt A SparseMatrix to write values to.
      * @return A reference to tgt.
@@ -147,7 +400,9 @@ public class SparseMatrix {
         for( int i : src.data.keys() ) {
             TIntDoubleMap row = src.data.get( i );
             for( int j : row.keys() ) { 
+                if( tgt.symmetric && i > j ) continue;
                 tgt.update( i, j, row.get( j ) );
+                if( src.symmetric && !tgt.symmetric && i != j ) tgt.update( j, i, row.get( j ) );
             }
         }
         return tgt;
@@ -162,22 +417,38 @@ public class SparseMatrix {
      * NB: Bytes are written in native order (usually little-endian) and NOT in the default Java 
      * big-endian order.
      * 
+     * The output is mapped in consecutive windows of at most {@link Triplets#WINDOW} bytes, so 
+     * files are not limited to the 2GB addressable by a single mapped buffer.
+     * 
+     * Symmetric matrices are written in full, including mirrored entries. Mirrored entries are 
+     * sorted in runs of at most {@link #SORT_RECORDS} entries that are merged with the stored 
+     * triangle through temporary files in the output's directory, using 
+     * {@link Triplets#merge(List, Path)}.
+     * 
      * @param m A SparseMatrix instance.
      * @param path A {@link Path} to write data to.
      * @throws IOException
      */
     public static void save( SparseMatrix m, Path path ) throws IOException {
-        long entries = m.size();
+        if( m.symmetric ) {
+            saveSymmetric( m, path );
+            return;
+        }
+        long end = m.size() * size_t;
         try ( FileChannel fc = FileUtils.openChannel( path, true, true, true, true ) ) {
             int[] rows = m.data.keys();
             Arrays.sort( rows );
-            MappedByteBuffer buffer = fc.map( FileChannel.MapMode.READ_WRITE, 0, entries * size_t );
-            buffer.order( ByteOrder.nativeOrder() );
+            long off = 0;
+            MappedByteBuffer buffer = null;
             for( int i : rows ) {
                 TIntDoubleMap row = m.data.get( i );
                 int[] cols = row.keys();
                 Arrays.sort( cols );
                 for( int j : cols ) {
+                    if( buffer == null || !buffer.hasRemaining() ) {
+                        buffer = Triplets.window( fc, FileChannel.MapMode.READ_WRITE, off, end );
+                        off += buffer.capacity();
+                    }
                     double d = row.get( j );
                     buffer.putInt( i );
                     buffer.putInt( j );
@@ -187,6 +458,63 @@ public class SparseMatrix {
         }
     }
     
+    /* write the stored upper triangle and sorted runs of at most SORT_RECORDS mirrored entries to
+     * temporary files next to the output, and merge them into it. Memory use is bounded by the run
+     * size, not by the number of entries. */
+    private static void saveSymmetric( SparseMatrix m, Path path ) throws IOException {
+        Path dir = path.toAbsolutePath().getParent();
+        List<Path> runs = new ArrayList<>();
+        try {
+            Path upper = Files.createTempFile( dir, "sym-", ".run" );
+            runs.add( upper );
+            int[] rows = m.data.keys();
+            Arrays.sort( rows );
+            try( Triplets.Writer w = new Triplets.Writer( upper ) ) {
+                for( int i : rows ) {
+                    TIntDoubleMap row = m.data.get( i );
+                    int[] cols = row.keys();
+                    Arrays.sort( cols );
+                    for( int j : cols ) {
+                        w.add( i, j, row.get( j ) );
+                    }
+                }
+            }
+            long[] keys = new long[ (int) Math.min( SORT_RECORDS, m.size() ) ];
+            int k = 0;
+            for( int i : rows ) {
+                for( int j : m.data.get( i ).keys() ) {
+                    if( i == j ) continue;
+                    if( k == keys.length ) {
+                        runs.add( mirrored( m, keys, k, dir ) );
+                        k = 0;
+                    }
+                    keys[k++] = ( (long) j << 32 ) | i;
+                }
+            }
+            if( k > 0 ) runs.add( mirrored( m, keys, k, dir ) );
+            Triplets.merge( runs, path );
+        } finally {
+            for( Path run : runs ) {
+                Files.deleteIfExists( run );
+            }
+        }
+    }
+    
+    /* sort the first n packed (row,col) keys of mirrored entries and write them to a new run */
+    private static Path mirrored( SparseMatrix m, long[] keys, int n, Path dir ) 
+    throws IOException {
+        Arrays.sort( keys, 0, n );
+        Path run = Files.createTempFile( dir, "sym-", ".run" );
+        try( Triplets.Writer w = new Triplets.Writer( run ) ) {
+            for( int k = 0; k < n; k++ ) {
+                int i = (int) ( keys[k] >>> 32 );
+                int j = (int) keys[k];
+                w.add( i, j, m.get( i, j ) );
+            }
+        }
+        return run;
+    }
+    
     /**
      * Load SprseMatrix data from the file at the location of the given directory and file names.
      * 
@@ -200,14 +528,46 @@ public class SparseMatrix {
      * @throws IOException 
      */
     public static SparseMatrix load( String dir, String file ) throws IOException {
-        SparseMatrix out = new SparseMatrix();
-        try( FileChannel fc = FileUtils.openChannel( dir, file, true, StandardOpenOption.READ ) ) {
-            MappedByteBuffer buffer = fc.map( FileChannel.MapMode.READ_ONLY, 0, fc.size() );
-            while( buffer.position() != buffer.capacity() ) {
-                int i = buffer.getInt();
-                int j = buffer.getInt();
-                double d = buffer.getDouble();
-                out.update( i, j, d );
+        return load( Paths.get( dir, file ) );
+    }
+    
+    /**
+     * Load SprseMatrix data from the file at the given path.
+     * 
+     * This method will attempt to read the file at the given location as if it were a continuous 
+     * byte stream of (int,int,double) tuples, as written by {@link #save(SparseMatrix, Path)}.
+     * 
+     * The file is read through a {@link Triplets.Reader}, which can also be used directly to 
+     * process files that are too large to load in memory.
+     * 
+     * @param path A {@link Path} to read data from.
+     * @return A new SparseMatrix instance with all data found at the given location.
+     * 
+     * @throws IOException 
+     */
+    public static SparseMatrix load( Path path ) throws IOException {
+        return load( path, false );
+    }
+    
+    /**
+     * Load SparseMatrix data from the file at the given path into a full or symmetric matrix.
+     * 
+     * If symmetric, the file is assumed to contain a symmetric matrix, as written by 
+     * {@link #save(SparseMatrix, Path)} from a symmetric matrix, and entries below the diagonal 
+     * are skipped.
+     * 
+     * @param path      A {@link Path} to read data from.
+     * @param symmetric Whether to load data into a symmetric matrix.
+     * @return A new SparseMatrix instance with all data found at the given location.
+     * 
+     * @throws IOException 
+     */
+    public static SparseMatrix load( Path path, boolean symmetric ) throws IOException {
+        SparseMatrix out = new SparseMatrix( symmetric );
+        try( Triplets.Reader r = new Triplets.Reader( path ) ) {
+            while( r.advance() ) {
+                if( symmetric && r.i() > r.j() ) continue;
+                out.update( r.i(), r.j(), r.x() );
             }
         }
         return out;
@@ -226,6 +586,7 @@ public class SparseMatrix {
             for( int j : row.keys() ) {
                 double x = row.get( j );
                 out.add( new Record( i, j, x ) );
+                if( symmetric && i != j ) out.add( new Record( j, i, x ) );
             }
         }
         out.sort( ( r1, r2 ) -> r1.compareTo( r2 ) );
@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2017 José Tomás Atria <jtatria at gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package edu.columbia.incite.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.util.ArrayUtil;
+
+import edu.columbia.incite.util.SparseMatrix.Record;
+
+/**
+ * Streaming access to files of sparse matrix triplets.
+ *
+ * Triplet files are continuous byte streams of (int,int,double) tuples in native byte order, as
+ * written by {@link SparseMatrix#save(SparseMatrix, Path)}. Files written by that method, or by a
+ * {@link Writer} fed in row-major order, are sorted by row and column and can be combined with
+ * {@link #merge(List, Path)} without loading them in memory.
+ *
+ * Files are read through memory-mapped windows of at most {@link #WINDOW} bytes, as a single
+ * {@link MappedByteBuffer} can't address more than 2GB. A {@link Reader} can be used to process
+ * the records in a file of any size one at a time, without materializing the matrix.
+ *
+ * @author José Tomás Atria <jtatria@gmail.com>
+ */
+public final class Triplets {
+
+    /** Number of records buffered in memory by each writer **/
+    public static final int BUFFER_RECORDS = 1 << 16;
+    /** Maximum size in bytes of each mapped region. A multiple of {@link SparseMatrix#size_t} **/
+    public static final long WINDOW = 1L << 30;
+
+    /* row-major order of the current records of two readers */
+    private static final Comparator<Reader> ORDER = ( r1, r2 ) ->
+        r1.i != r2.i ? Integer.compare( r1.i, r2.i ) : Integer.compare( r1.j, r2.j );
+
+    private Triplets() {}
+
+    /**
+     * Merge the given sorted triplet files into a single sorted triplet file, adding the values of
+     * records with the same row and column indices.
+     *
+     * This is a k-way merge that reads each input sequentially and buffers {@link #BUFFER_RECORDS}
+     * output records, so its memory use does not depend on the size of the inputs.
+     *
+     * @param runs Paths to sorted triplet files.
+     * @param out  Path to write merged data to. Must not be one of the inputs.
+     * @return The number of records written to the output file.
+     *
+     * @throws IOException
+     */
+    public static long merge( List<Path> runs, Path out ) throws IOException {
+        return merge( runs, out, 0 );
+    }
+
+    /**
+     * Merge the given sorted triplet files into a single sorted triplet file, adding the values of
+     * records with the same row and column indices and keeping only the k largest entries in each
+     * row.
+     *
+     * Rows are pruned as they are produced, so only one merged row is held in memory at a time.
+     * Ties at the k-th largest value are broken in favour of lower column indices.
+     *
+     * @param runs Paths to sorted triplet files.
+     * @param out  Path to write merged data to. Must not be one of the inputs.
+     * @param k    Maximum number of entries per row, or zero or less to keep all entries.
+     * @return The number of records written to the output file.
+     *
+     * @throws IOException
+     */
+    public static long merge( List<Path> runs, Path out, int k ) throws IOException {
+        List<Reader> rdrs = new ArrayList<>();
+        PriorityQueue<Reader> heap = new PriorityQueue<>( Math.max( 1, runs.size() ), ORDER );
+        try( Writer w = k > 0 ? new TopWriter( out, k ) : new Writer( out ) ) {
+            for( Path run : runs ) {
+                Reader r = new Reader( run );
+                rdrs.add( r );
+                if( r.advance() ) heap.add( r );
+            }
+            while( !heap.isEmpty() ) {
+                Reader r = heap.poll();
+                int i = r.i;
+                int j = r.j;
+                double x = r.x;
+                if( r.advance() ) heap.add( r );
+                while( !heap.isEmpty() && heap.peek().i == i && heap.peek().j == j ) {
+                    r = heap.poll();
+                    x += r.x;
+                    if( r.advance() ) heap.add( r );
+                }
+                w.add( i, j, x );
+            }
+            return w.size();
+        } finally {
+            for( Reader r : rdrs ) {
+                r.close();
+            }
+        }
+    }
+
+    /**
+     * Append the records in a triplet file to another triplet file.
+     * 
+     * If both files are sorted and all records in the source file have greater row indices than 
+     * all records in the target file, the result is sorted.
+     * 
+     * @param src A triplet file.
+     * @param dst A triplet file to append to. Will be created if it does not exist.
+     * @return The number of records appended.
+     * 
+     * @throws IOException
+     */
+    public static long append( Path src, Path dst ) throws IOException {
+        try( 
+            FileChannel in = FileChannel.open( src, StandardOpenOption.READ );
+            FileChannel out = FileChannel.open( dst, 
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND 
+            )
+        ) {
+            long size = in.size();
+            for( long off = 0; off < size; ) {
+                off += in.transferTo( off, size - off, out );
+            }
+            return size / SparseMatrix.size_t;
+        }
+    }
+
+    /**
+     * Split a sorted triplet file with a block-diagonal matrix into one triplet file per block.
+     * 
+     * Records in block s must have row and column indices between {@code s * size} (inclusive) 
+     * and {@code ( s + 1 ) * size} (exclusive); they are written to the s-th output with both 
+     * indices reduced by {@code s * size}. The input is read once, sequentially, and blocks 
+     * without records produce empty files, so all outputs are written.
+     * 
+     * @param in   A sorted triplet file.
+     * @param size Number of rows and columns in each block.
+     * @param outs Paths to write each block to.
+     * @return The number of records written to each output.
+     * 
+     * @throws IOException if the input can't be read, is not sorted, or contains records outside 
+     * of the diagonal blocks or past the last output.
+     */
+    public static long[] split( Path in, int size, Path[] outs ) throws IOException {
+        long[] counts = new long[ outs.length ];
+        int cur = -1;
+        Writer w = null;
+        try( Reader r = new Reader( in ) ) {
+            while( r.advance() ) {
+                int s = r.i() / size;
+                if( s < cur ) {
+                    throw new IOException( String.format( "%s is not sorted", in ) );
+                }
+                if( s >= outs.length || r.j() / size != s ) {
+                    throw new IOException( String.format( 
+                        "%s: record ( %d, %d ) is not in one of %d blocks of size %d", 
+                        in, r.i(), r.j(), outs.length, size
+                    ) );
+                }
+                if( s != cur ) {
+                    if( w != null ) w.close();
+                    while( ++cur < s ) new Writer( outs[cur] ).close();
+                    w = new Writer( outs[s] );
+                }
+                w.add( r.i() - s * size, r.j() - s * size, r.x() );
+                counts[s]++;
+            }
+        } finally {
+            if( w != null ) w.close();
+        }
+        while( ++cur < outs.length ) new Writer( outs[cur] ).close();
+        return counts;
+    }
+
+    /**
+     * Map a window of at most {@link #WINDOW} bytes of the given channel, starting at the given
+     * offset and ending no later than the given end offset.
+     *
+     * @param fc   A {@link FileChannel}.
+     * @param mode Mapping mode.
+     * @param off  Start offset.
+     * @param end  End offset of the region to be mapped in consecutive windows.
+     * @return A {@link MappedByteBuffer} in native byte order.
+     *
+     * @throws IOException
+     */
+    static MappedByteBuffer window( FileChannel fc, FileChannel.MapMode mode, long off, long end )
+    throws IOException {
+        MappedByteBuffer buf = fc.map( mode, off, Math.min( WINDOW, end - off ) );
+        buf.order( ByteOrder.nativeOrder() );
+        return buf;
+    }
+
+    /**
+     * Sequential reader for triplet files.
+     *
+     * Call {@link #advance()} to move to the next record, then read its values from {@link #i()},
+     * {@link #j()} and {@link #x()}. Alternatively, use this reader as an {@link Iterator} of
+     * {@link Record}s; the two styles should not be mixed.
+     */
+    public static final class Reader implements Closeable, Iterator<Record> {
+        private final FileChannel fc;
+        private final long size;
+        private long off;
+        private MappedByteBuffer buf;
+        private int i;
+        private int j;
+        private double x;
+        private boolean peeked;
+        private boolean more;
+
+        /**
+         * Open the triplet file at the given path for reading.
+         * @param path A {@link Path} to a triplet file.
+         * @throws IOException if the file can't be read or its size is not a multiple of
+         *                     {@link SparseMatrix#size_t}.
+         */
+        public Reader( Path path ) throws IOException {
+            this.fc = FileChannel.open( path, StandardOpenOption.READ );
+            this.size = fc.size();
+            if( size % SparseMatrix.size_t != 0 ) {
+                fc.close();
+                throw new IOException( String.format(
+                    "%s: size %d is not a multiple of %d", path, size, SparseMatrix.size_t
+                ) );
+            }
+        }
+
+        /**
+         * Number of records in the file.
+         * @return The file's size in bytes over {@link SparseMatrix#size_t}.
+         */
+        public long size() {
+            return size / SparseMatrix.size_t;
+        }
+
+        /**
+         * Advance to the next record.
+         * @return {@code false} if there are no more records in the file.
+         * @throws IOException
+         */
+        public boolean advance() throws IOException {
+            if( buf == null || !buf.hasRemaining() ) {
+                if( off >= size ) return false;
+                buf = window( fc, FileChannel.MapMode.READ_ONLY, off, size );
+                off += buf.capacity();
+            }
+            this.i = buf.getInt();
+            this.j = buf.getInt();
+            this.x = buf.getDouble();
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if( !peeked ) {
+                try {
+                    more = advance();
+                } catch( IOException ex ) {
+                    throw new UncheckedIOException( ex );
+                }
+                peeked = true;
+            }
+            return more;
+        }
+
+        @Override
+        public Record next() {
+            if( !hasNext() ) throw new NoSuchElementException();
+            peeked = false;
+            return new Record( i, j, x );
+        }
+
+        /** @return Row index of the current record **/
+        public int i() {
+            return i;
+        }
+
+        /** @return Col index of the current record **/
+        public int j() {
+            return j;
+        }
+
+        /** @return Value of the current record **/
+        public double x() {
+            return x;
+        }
+
+        @Override
+        public void close() throws IOException {
+            fc.close();
+        }
+    }
+
+    /**
+     * Sequential writer for triplet files.
+     *
+     * Records are written in the order given. Callers are responsible for adding them in row-major
+     * order if the output is to be merged with {@link Triplets#merge(List, Path)}.
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel fc;
+        private final ByteBuffer buf;
+        private long size;
+
+        /**
+         * Create a triplet file at the given path, replacing any existing file.
+         * @param path A {@link Path} to write to.
+         * @throws IOException
+         */
+        public Writer( Path path ) throws IOException {
+            this.fc = FileUtils.openChannel( path, true, true, true, false );
+            this.buf = ByteBuffer.allocateDirect( BUFFER_RECORDS * SparseMatrix.size_t );
+            buf.order( ByteOrder.nativeOrder() );
+        }
+
+        /**
+         * Append a record to the file.
+         * @param i Row index.
+         * @param j Col index.
+         * @param x Value.
+         * @throws IOException
+         */
+        public void add( int i, int j, double x ) throws IOException {
+            if( buf.remaining() < SparseMatrix.size_t ) flush();
+            buf.putInt( i );
+            buf.putInt( j );
+            buf.putDouble( x );
+            size++;
+        }
+
+        /** @return Number of records written so far **/
+        public long size() {
+            return size;
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            while( buf.hasRemaining() ) {
+                fc.write( buf );
+            }
+            buf.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                fc.close();
+            }
+        }
+    }
+
+    /* writer that buffers each row and writes only its k largest entries, in column order */
+    private static final class TopWriter extends Writer {
+        private final int k;
+        private int row = -1;
+        private int[] cols = new int[0];
+        private double[] vals = new double[0];
+        private double[] sorted = new double[0];
+        private int n;
+
+        private TopWriter( Path path, int k ) throws IOException {
+            super( path );
+            this.k = k;
+        }
+
+        @Override
+        public void add( int i, int j, double x ) throws IOException {
+            if( i != row ) {
+                prune();
+                row = i;
+            }
+            if( n == cols.length ) {
+                int len = ArrayUtil.oversize( n + 1, Double.BYTES );
+                cols = Arrays.copyOf( cols, len );
+                vals = Arrays.copyOf( vals, len );
+            }
+            cols[n] = j;
+            vals[n] = x;
+            n++;
+        }
+
+        private void prune() throws IOException {
+            if( n > k ) {
+                if( sorted.length < n ) sorted = new double[ vals.length ];
+                System.arraycopy( vals, 0, sorted, 0, n );
+                Arrays.sort( sorted, 0, n );
+                double min = sorted[ n - k ];
+                int ties = 0;
+                for( int e = n - k; e < n && sorted[e] == min; e++ ) ties++;
+                for( int e = 0; e < n; e++ ) {
+                    if( vals[e] > min || ( vals[e] == min && ties-- > 0 ) ) {
+                        super.add( row, cols[e], vals[e] );
+                    }
+                }
+            } else {
+                for( int e = 0; e < n; e++ ) {
+                    super.add( row, cols[e], vals[e] );
+                }
+            }
+            n = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                prune();
+            } finally {
+                super.close();
+            }
+        }
+    }
+}